@@ -9,8 +9,8 @@ import com.github.javacliparser.FileOption;
 import com.github.javacliparser.FlagOption;
 import com.github.javacliparser.FloatOption;
 import com.github.javacliparser.IntOption;
+import com.github.javacliparser.MultiChoiceOption;
 import com.yahoo.labs.samoa.instances.Instance;
-import com.yahoo.labs.samoa.instances.SamoaToWekaInstanceConverter;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
@@ -19,7 +19,7 @@ import java.io.FileWriter;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Vector;
 import moa.classifiers.AbstractClassifier;
@@ -29,9 +29,6 @@ import weka.classifiers.Classifier;
 import weka.classifiers.lazy.IBk;
 import weka.classifiers.rules.JRip;
 import weka.core.Instances;
-import weka.filters.Filter;
-import weka.filters.unsupervised.attribute.Add;
-import weka.filters.unsupervised.attribute.Remove;
 
 /**
  *
@@ -42,9 +39,9 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
     private static final long serialVersionUID = 1L;
 
     private Classifier baseClassifier;
-    protected SamoaToWekaInstanceConverter instanceConverter = new SamoaToWekaInstanceConverter();
+    protected WekaInstanceConverter instanceConverter = new WekaInstanceConverter();
 
-    protected ExtADWIN ADError;
+    protected ErrorChangeDetector ADError;
     //protected ADWIN ADError;
     protected int maxBatchesToKeep;
 
@@ -61,19 +58,24 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
     int numInstances = 0;  // how many instances have been seen
     int instancesInBatch = 0; // how many instances have been seen in this batch
 
-    DSALearnerWrapper regionDecider;
-    Vector regionPatches;
+    volatile PatchedModel patchedModel;  // region decider + patches, always replaced as a whole
+    transient BackgroundUpdater backgroundUpdater;
+    int modelGeneration = 0; // increases on reset, so that stale background rebuilds are not published
+    volatile long peakUpdateMemory = 0;  // highest heap usage seen during an update phase
 
-    protected weka.core.Instances instancesBuffer;
+    protected InstanceStore.Buffer instancesBuffer;
+    double[] bufferPredictions;  // base classifier predictions for the instances in the buffer
+    transient LastVotes lastVotes;  // per thread: instance of its last getVotesForInstance call and its base prediction
 
     Instances origData;
     Instances errorInstances;
-    Instances reDefinedClasses;
-    Instances prototypeData;
+    BaseLabelAugmenter baseLabelAugmenter;  // adds the baseLabel attribute for useBaseClassAsAttribute
     InstanceStore instanceStore;
+    UpdatePolicy updatePolicy;
+    PatchCache patchCache;    // null if patches are always rebuilt
+    HoeffdingRegionTree regionTree;  // with incrementalDecider: learns from every instance, null before the first one
 
     Boolean initPhase = true;
-    Vector subsets = new Vector();
     double basePerformance = 0;
     Vector basePerfOnSubset = new Vector();
 
@@ -113,8 +115,54 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
 
     public FlagOption adwinOnly = new FlagOption("AdwinOnly", 'z', "If this is set, the batchesToKeep grow to 'infinity'. The both settings above are ignored.");
 
+    public FlagOption binaryAdwin = new FlagOption("binaryAdwin", 'e', "Use an ADWIN for 0/1 error streams that only counts the errors per bucket (BinaryADWIN)");
+
+    public MultiChoiceOption driftDetector = new MultiChoiceOption("driftDetector", 'r',
+            "Which detector watches the errors of the base classifier and sizes the window of the Instance Store.",
+            ErrorChangeDetector.DETECTORS,
+            new String[]{"ADWIN (options x, e)", "DDM, constant time", "EDDM, constant time", "HDDM_A, one-sided, constant time",
+                "Page-Hinkley, constant time", "CUSUM against the mean of a sliding window (option j), constant time"}, 0);
+
+    public IntOption cusumWindow = new IntOption("cusumWindow", 'j',
+            "With the CUSUM driftDetector: the number of latest errors whose mean CUSUM compares the errors with.", 2000,
+            1, Integer.MAX_VALUE);
+
     public FlagOption forceNoAdaptation = new FlagOption("forceNoAdaptation", 'f', "If set, NO adaptation is processed!");
 
+    public IntOption patchBuildThreads = new IntOption("patchBuildThreads", 't',
+            "The number of patches that are trained in parallel during an update (1 = one after another).", 1,
+            1, Integer.MAX_VALUE);
+
+    public FlagOption asyncUpdate = new FlagOption("asyncUpdate", 'u', "If set, the region decider and the patches are rebuilt on a background thread while the previous model keeps predicting.");
+
+    public MultiChoiceOption asyncUpdatePolicy = new MultiChoiceOption("asyncUpdatePolicy", 'q',
+            "What to do with batches that arrive while a background rebuild is still running.",
+            new String[]{"Coalesce", "Queue"},
+            new String[]{"Only rebuild for the most recent batch, skip the waiting ones", "Rebuild once for every batch, in order (the stream waits if " + BackgroundUpdater.MAX_QUEUED + " rebuilds are waiting)"}, 0);
+
+    public MultiChoiceOption instanceStoreLayout = new MultiChoiceOption("instanceStoreLayout", 'o',
+            "How the instances of the Instance Store are kept in memory.",
+            InstanceStore.LAYOUTS,
+            new String[]{"Weka instances, one object per instance", "Primitive columns per batch", "Primitive columns per batch, values as float",
+                "Off-heap columns per batch", "Off-heap columns per batch, values as float"}, 0);
+
+    public FlagOption gatedUpdates = new FlagOption("gatedUpdates", 'g', "If set, a batch only rebuilds the region decider and the patches on a change, a rise of the base error or when the model is too old; otherwise it is only added to the Instance Store.");
+
+    public FloatOption rebuildErrorTolerance = new FloatOption("rebuildErrorTolerance", 'v',
+            "With gatedUpdates: rise of the base error rate on a batch (over the lowest one since the last rebuild) that triggers a rebuild.", 0.02, 0, 1);
+
+    public IntOption maxStaleBatches = new IntOption("maxStaleBatches", 's',
+            "With gatedUpdates: the model is rebuilt at the latest after this many batches.", 10, 1, Integer.MAX_VALUE);
+
+    public FlagOption cachePatches = new FlagOption("cachePatches", 'c', "If set, the patch of a region that has the same rule as in the previous update and about the same instances is reused instead of trained again.");
+
+    public FloatOption patchCacheMaxChange = new FloatOption("patchCacheMaxChange", 'h',
+            "With cachePatches: the fraction of the instances of a region that may have changed since its patch was trained before the patch is rebuilt.", 0.1, 0, 1);
+
+    public FlagOption warmStartDecider = new FlagOption("warmStartDecider", 'w', "If set, the region decider (ExtRip) starts from the rules of the previous one and keeps those that still fit, instead of learning all rules from scratch.");
+
+    public FlagOption incrementalDecider = new FlagOption("incrementalDecider", 'n', "If set, the region decider is a Hoeffding tree that learns from every instance as it arrives, so an update only rebuilds the patches (decisionSpaceLearner is not used).");
+
     public WEKAClassOption baseClassifierOption = new WEKAClassOption("baseLearner", 'l',
             "WEKA class to use for the base classifier.", weka.classifiers.Classifier.class, "weka.classifiers.rules.JRip");
 
@@ -139,15 +187,25 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
 
         this.origData = null;
         this.errorInstances = null;
-        this.reDefinedClasses = null;
-        this.subsets = new Vector();
         this.basePerformance = 0;
         this.basePerfOnSubset = new Vector();
-        this.regionPatches = new Vector();
-        this.regionDecider = null;
-        this.instanceStore = new InstanceStore(batchesToKeep.getValue());
+        this.patchedModel = null;
+        this.peakUpdateMemory = 0;
+        this.bufferPredictions = null;
+        this.lastVotes = new LastVotes();
+        this.instanceStore = InstanceStore.create(instanceStoreLayout.getChosenIndex(), batchesToKeep.getValue());
+        this.updatePolicy = new UpdatePolicy(gatedUpdates.isSet(), rebuildErrorTolerance.getValue(), maxStaleBatches.getValue());
+        this.patchCache = cachePatches.isSet() ? new PatchCache(patchCacheMaxChange.getValue()) : null;
+        this.regionTree = null;
+
+        this.modelGeneration++;
+        if (this.backgroundUpdater != null) {
+            this.backgroundUpdater.shutdown();
+            this.backgroundUpdater = null;
+        }
 
-        this.ADError = new ExtADWIN(adwinDelta.getValue(), batchSize.getValue());
+        this.ADError = ErrorChangeDetector.create(driftDetector.getChosenIndex(), adwinDelta.getValue(), 0,
+                batchSize.getValue(), binaryAdwin.isSet(), cusumWindow.getValue());
         System.out.println(adwinDelta.getValue());
         System.out.println(variance_epsilon.getValue());
         this.maxBatchesToKeep = batchesToKeep.getValue();
@@ -164,12 +222,19 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
     public void trainOnInstanceImpl(Instance samoaInstance) {
 
         // Fill the new instance into the buffer...
-        weka.core.Instance inst = this.instanceConverter.wekaInstance(samoaInstance);
-        if (this.instancesBuffer != null) {
-            this.instancesBuffer.add(inst);
-        } else {
-            weka.core.Instances tmp = new weka.core.Instances(inst.dataset());
-            this.instancesBuffer = tmp;
+        // (only converted if it is kept, the buffer is not used if no adaptation takes place)
+        if (this.initPhase || !this.forceNoAdaptation.isSet()) {
+            if (this.instancesBuffer != null) {
+                weka.core.Instance inst = this.instanceConverter.convert(samoaInstance);
+                this.instancesBuffer.append(inst);  // the converted instance itself, no copy
+                if (!this.initPhase) {
+                    recordBasePrediction(samoaInstance, inst, this.instancesBuffer.numInstances() - 1);
+                    trainRegionTree(inst, this.bufferPredictions[this.instancesBuffer.numInstances() - 1]);
+                }
+            } else {
+                this.instancesBuffer = new InstanceStore.Buffer(this.instanceConverter.header(samoaInstance), 0);
+                this.instanceStore.setHeader(this.instancesBuffer);  // fails right away if the store layout cannot keep these attributes
+            }
         }
 
         this.numInstances++;
@@ -187,10 +252,10 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
                 instancesInBatch = 0; // reset this
 
                 if (useBaseClassAsAttribute.isSet()) {
-                    this.prototypeData = new Instances(this.origData);  // create an empty instance set, just for the attribute configuration
-                    while (prototypeData.size() > 0) {
-                        this.prototypeData.delete(0);
-                    }
+                    this.baseLabelAugmenter = new BaseLabelAugmenter(this.origData);  // the augmented header is created once
+                }
+                if (this.baseClassifier != null) {
+                    publishModel(new PatchedModel(this.baseClassifier, this.baseLabelAugmenter), this.modelGeneration);
                 }
             }
 
@@ -200,7 +265,7 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
 
                 // Update the classifier if allowed
                 if (!forceNoAdaptation.isSet()) {
-                    updateClassifier(instancesBuffer);
+                    updateClassifier(instancesBuffer, takeBufferPredictions());
                 }
 
                 // and reset the instanceBuffer
@@ -211,6 +276,97 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
 
     }
 
+    /**
+     * Remembers the base classifier prediction for an instance in the buffer.
+     * If getVotesForInstance was just called for the same instance (as in a
+     * prequential evaluation), its prediction is reused.
+     *
+     * @param samoaInstance
+     * @param inst
+     * @param index position of inst in the buffer
+     */
+    private void recordBasePrediction(Instance samoaInstance, weka.core.Instance inst, int index) {
+        if (this.bufferPredictions == null || this.bufferPredictions.length <= index) {
+            int size = Math.max(index + 1, Math.max(2 * index, batchSize.getValue()));
+            this.bufferPredictions = (this.bufferPredictions == null) ? new double[size] : Arrays.copyOf(this.bufferPredictions, size);
+        }
+
+        double prediction = Double.NaN;
+        LastVote vote = lastVote();
+        if (vote.instance == samoaInstance && !Double.isNaN(vote.prediction)) {
+            prediction = vote.prediction;
+        } else if (this.baseClassifier != null) {
+            try {
+                prediction = this.baseClassifier.classifyInstance(inst);
+            } catch (Exception e) {
+                System.err.println("Error while classifying instance with the base classifier");
+                System.err.println(e.getMessage());
+            }
+        }
+        this.bufferPredictions[index] = prediction;
+    }
+
+    /**
+     * Teaches the incremental region decider whether the base classifier was
+     * right for the instance. It sees the instance like the region decider
+     * of the model does, with the base prediction if useBaseClassAsAttribute
+     * is set.
+     *
+     * @param inst
+     * @param basePrediction
+     */
+    private void trainRegionTree(weka.core.Instance inst, double basePrediction) {
+        if (!this.incrementalDecider.isSet() || Double.isNaN(basePrediction)) {
+            return;
+        }
+        if (this.regionTree == null) {
+            this.regionTree = new HoeffdingRegionTree();
+        }
+        double label = (basePrediction == inst.classValue()) ? WrongRightView.RIGHT : WrongRightView.WRONG;
+        if (this.baseLabelAugmenter != null) {
+            inst = this.baseLabelAugmenter.augment(inst, basePrediction);  // reused buffer, only read by learn
+        }
+        this.regionTree.learn(inst, label);
+    }
+
+    /**
+     * Returns the base classifier predictions for the current buffer.
+     *
+     * @return
+     */
+    private double[] takeBufferPredictions() {
+        if (this.bufferPredictions == null || this.instancesBuffer == null) {
+            return null;
+        }
+        return Arrays.copyOf(this.bufferPredictions, this.instancesBuffer.numInstances());
+    }
+
+    /**
+     * Returns the base classifier predictions for the given instances. Known
+     * predictions are used as they are, the base classifier is only asked if
+     * they are missing.
+     *
+     * @param data
+     * @param known
+     * @return
+     */
+    private double[] basePredictionsFor(Instances data, double[] known) {
+        if (known != null && known.length >= data.numInstances()) {
+            return known;
+        }
+        double[] predictions = new double[data.numInstances()];
+        for (int i = 0; i < predictions.length; i++) {
+            try {
+                predictions[i] = this.baseClassifier.classifyInstance(data.instance(i)); // Caution: this must always be "base"
+            } catch (Exception e) {
+                System.err.println("Error while classifying instance with the base classifier");
+                System.err.println(data.instance(i));
+                System.err.println(e.getMessage());
+            }
+        }
+        return predictions;
+    }
+
     /**
      * Returns an instance of the trained base classifier. Also saves/loads the
      * classifier from/to a file if required.
@@ -311,6 +467,18 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
     }
 
     public void updateClassifier(Instances data) {
+        updateClassifier(data, null);
+    }
+
+    /**
+     * Runs the update phase for a batch whose base classifier predictions are
+     * already known. They are kept in the Instance Store next to the
+     * instances, so the base classifier is never asked again for stored data.
+     *
+     * @param data
+     * @param basePredictions one prediction per instance of data, or null
+     */
+    public void updateClassifier(Instances data, double[] basePredictions) {
 
         System.out.println("########## UPDATE PHASE ############");
         this.updates++;
@@ -318,7 +486,7 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
         // Performance berechnen und Adwin befüllen
         System.out.println("Data size: " + data.size());
         System.out.println("Determine Performance...");
-        determinePerformance(data, baseClassifier);
+        double accuracy = determinePerformance(data, baseClassifier, basePredictions);
 
         accuracy_array.add((double)counter_one / batchSize.getValue());
         if(change){
@@ -353,18 +521,21 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
             }
         }
 
-        if((this.ADError.getWidth() / batchSize.getValue()) < 1){
+        this.instanceStore.setMaxInstances(Integer.MAX_VALUE);
+        if((this.ADError.getWindowLength() / batchSize.getValue()) < 1){
             this.instanceStore.setNumBatches(1);
         }else{
             if(adwinOnly.isSet()){
-                this.instanceStore.setNumBatches(this.ADError.getWidth() / batchSize.getValue());
+                // keep exactly the instances inside the ADWIN window, no rounding to whole batches
+                this.instanceStore.setNumBatches(Integer.MAX_VALUE);
+                this.instanceStore.setMaxInstances(this.ADError.getWindowLength());
             }else {
                 if (Math.abs((double) variance - old_variance) < (double) real_variance_epsilon) {
                     maxBatchesToKeep = this.instanceStore.numBatches;
                     System.out.println("Batchsize wird nicht erhöht wegen Varianz");
                 }
-                this.instanceStore.setNumBatches(Math.min(maxBatchesToKeep, this.ADError.getWidth() / batchSize.getValue()));
-                //this.instanceStore.setNumBatches(this.ADError.getWidth() / batchSize.getValue());
+                this.instanceStore.setNumBatches(Math.min(maxBatchesToKeep, this.ADError.getWindowLength() / batchSize.getValue()));
+                //this.instanceStore.setNumBatches(this.ADError.getWindowLength() / batchSize.getValue());
             }
         }
 
@@ -374,14 +545,62 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
         }
 
         // First: merge the new instances to the "Instance Store"
-        this.instanceStore.addInstances(data);
-        System.out.println("size ADWIN: " + this.ADError.getWidth());
-        System.out.println("size InstanceStore: " + this.instanceStore.numBatches);
-        Instances currentStore = this.instanceStore.getInstances();
-
+        this.instanceStore.addInstances(data, basePredictions);
+        System.out.println("size ADWIN: " + this.ADError.getWindowLength());
+        System.out.println("size InstanceStore: " + this.instanceStore.numStoredBatches() + " batches, " + this.instanceStore.numInstances() + " instances");
+        final Instances currentStore = this.instanceStore.getInstances(); // read-only view, stays valid while the store moves on
+        final double[] currentPredictions = this.instanceStore.getBasePredictions();
 
         System.out.println("Update at Instance: " + this.numInstances + " | Size of Instance store (updates:" + this.updates + "): " + currentStore.size());
 
+        if (!this.updatePolicy.rebuild(change, 1 - accuracy)) {
+            System.out.println("No change, the model is not rebuilt");
+            System.out.println("##############################\n\n\n");
+            return;
+        }
+
+        // A change restarts the region tree on the instances that are kept
+        if (change && this.regionTree != null) {
+            try {
+                this.regionTree.buildClassifier(redefineProblem(currentStore, currentPredictions));
+            } catch (Exception e) {
+                System.err.println("Error restarting the region tree");
+                System.err.println(e.getMessage());
+            }
+        }
+
+        // the tree learns on while the patches are built, they are built for its current state
+        final HoeffdingRegionTree regionSnapshot = (this.regionTree != null) ? this.regionTree.snapshot() : null;
+
+        if (this.asyncUpdate.isSet()) {
+            if (this.backgroundUpdater == null) {
+                this.backgroundUpdater = new BackgroundUpdater(this.asyncUpdatePolicy.getChosenIndex());
+            }
+            final int generation = this.modelGeneration;
+            this.backgroundUpdater.submit(new Runnable() {
+                @Override
+                public void run() {
+                    publishModel(rebuildModel(currentStore, currentPredictions, regionSnapshot), generation);
+                }
+            });
+        } else {
+            publishModel(rebuildModel(currentStore, currentPredictions, regionSnapshot), this.modelGeneration);
+        }
+
+        System.out.println("##############################\n\n\n");
+    }
+
+    /**
+     * Learns the error regions and the patches on the given instances. Does not
+     * touch the currently used model, so it may run while predictions are made.
+     *
+     * @param currentStore
+     * @param currentPredictions base classifier predictions for currentStore, or null
+     * @param regionTree the incremental region decider to use, null to learn one on currentStore
+     * @return
+     */
+    private PatchedModel rebuildModel(Instances currentStore, double[] currentPredictions, HoeffdingRegionTree regionTree) {
+
         // Turn the instances into a binary learning problem to learn the decision space where the original classifier was wrong
         //writeArff("C:\\StAtIC\\experiments\\orig.arff", currentStore);
 
@@ -391,44 +610,79 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
 
         // Determine the subsets of instances which are covered by the rules (that are not the default rule)
 
+        Instances reDefinedClasses = null;  // only needed until the decider is built
+        if (regionTree == null) {
+            System.out.println("Redefine Problem...");
+            reDefinedClasses = redefineProblem(currentStore, currentPredictions);
+            sampleUpdateMemory();
+        }
+
         if(this.useBaseClassAsAttribute.isSet())
         {
-            currentStore = addBaseClassToInstances(currentStore);
+            currentStore = addBaseClassToInstances(currentStore, currentPredictions);
         }
 
-        //if(change) {
-
-            System.out.println("Redefine Problem...");
-            this.reDefinedClasses = redefineProblem(currentStore);
-
-            // Now: learn the error regions with a specially adapted or a normal classifier:
+        // Now: learn the error regions with a specially adapted or a normal classifier:
+        DSALearnerWrapper regionDecider = null;
+        if (regionTree != null) {
+            // learned instance by instance, only its state at this update is used
+            regionDecider = new DSALearnerWrapper(regionTree, true);
+        } else {
             try {
                 System.out.println("Build Classifier...");
-                this.regionDecider = new DSALearnerWrapper(getDecisionSpaceClassifier());
+                regionDecider = new DSALearnerWrapper(getDecisionSpaceClassifier());
+                PatchedModel previous = this.patchedModel;  // read once, a reset may clear it at any time
+                if (this.warmStartDecider.isSet() && previous != null) {
+                    regionDecider.setWarmStart(previous.getRegionDecider());   // the rules of the model in use
+                }
                 regionDecider.buildClassifier(reDefinedClasses);
+                sampleUpdateMemory();
 
-//            System.out.println("Error Space Classifier:"); System.out.println(regionDecider.toString());       // Todo remove this out
+//                System.out.println("Error Space Classifier:"); System.out.println(regionDecider.toString());       // Todo remove this out
             } catch (Exception e) {
                 System.err.println("Error building region decider");
                 System.err.println(e.getStackTrace());
                 System.err.println(e.getMessage());
                 System.exit(123452345);
             }
+        }
 
-            System.out.println("Determine Subsets...");
-            this.subsets = determineSubsets(currentStore, regionDecider);
+        System.out.println("Determine Subsets...");
+        int[][] subsets = determineSubsets(currentStore, regionDecider);
 
-            // Determine the performance of the BASE classifier for each of those subsets
-            //this.basePerfOnSubset = determineBasePerformanceOnSubsets(this.subsets, baseClassifier);
+        // Determine the performance of the BASE classifier for each of those subsets
+        //this.basePerfOnSubset = determineBasePerformanceOnSubsets(this.subsets, baseClassifier);
 
-            // Create individual models for the subsets
-            this.regionPatches = createPatches(this.subsets, this.basePerfOnSubset);
-            System.out.println("Region Decision Subsets: " + subsets.size());
+        // Create individual models for the subsets
+        Vector<Classifier> regionPatches = createPatches(currentStore, subsets, regionDecider);
+        System.out.println("Region Decision Subsets: " + subsets.length);
+        sampleUpdateMemory();
 
-        //}
+        return new PatchedModel(this.baseClassifier, this.baseLabelAugmenter, regionDecider, regionPatches, subsets);
+    }
 
-//        System.exit(18567820);
-        System.out.println("##############################\n\n\n");
+    /**
+     * Remembers the highest heap usage seen so far during update phases.
+     */
+    private void sampleUpdateMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        if (used > this.peakUpdateMemory) {
+            this.peakUpdateMemory = used;
+        }
+    }
+
+    /**
+     * Makes a rebuilt model the one that is used for predictions, unless the
+     * learner has been reset in the meantime.
+     *
+     * @param model
+     * @param generation
+     */
+    private synchronized void publishModel(PatchedModel model, int generation) {
+        if (generation == this.modelGeneration) {
+            this.patchedModel = model;
+        }
     }
 
     /**
@@ -452,38 +706,26 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
      * Learns a specific subset classifier (of the same type as the base
      * classifier) to improve accuracy on the regions that performed bad before.
      *
+     * @param data
      * @param subsets
-     * @param basePerformance
+     * @param regionDecider the decider the subsets belong to
      * @return
      */
-    private Vector createPatches(Vector subsets, Vector basePerformance) {
-        Vector patches = new Vector();
+    private Vector<Classifier> createPatches(Instances data, int[][] subsets, DSALearnerWrapper regionDecider) {
 
-        System.out.println("Creating patches: #" + subsets.size());
-        try {
-            for (int d = 0; d < subsets.size(); d++) {
-
-                Instances set = (Instances) subsets.get(d);
-
-//                if(this.useBaseClassAsAttribute.isSet()) {
-//                        writeArff("C:\\StAtIC\\experiments\\set"+d+".arff", set);
-//                    }
-//                System.out.println("Set " + d + " size: " + set.size());
-                Classifier patch;
-                if (set.size() < 5) // Too small to do anything properly
-                {
-                    patch = null;   // null will then default to base classifier
-                } else {
+        System.out.println("Creating patches: #" + subsets.length);
 
-                    patch = getPatchClassifier();
-                    patch.buildClassifier(set);
-                }
-
-                patches.add(d, patch);
+        // Each region gets its own copy of the patch learner, a failing patch falls back to the base classifier
+        Vector<Classifier> patches;
+        if (this.patchCache == null || regionDecider == null) {
+            patches = PatchBuilder.buildPatches(data, subsets, getPatchClassifier(), patchBuildThreads.getValue());
+        } else {
+            // Regions that come back with the same rule and about the same instances keep their patch
+            String[] signatures = new String[subsets.length];
+            for (int r = 0; r < subsets.length; r++) {
+                signatures[r] = regionDecider.getRegionSignature(r);
             }
-        } catch (Exception e) {
-            System.err.println("Error building patches:");
-            System.err.println(e.getMessage());
+            patches = this.patchCache.buildPatches(data, subsets, signatures, getPatchClassifier(), patchBuildThreads.getValue());
         }
 
 //        System.out.println("\n--- Patches ------------");
@@ -511,7 +753,7 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
 
         for (int d = 0; d < subsets.size(); d++) {
             Instances sub = (Instances) subsets.get(d);
-            perf.add(d, determinePerformance(sub, base));
+            perf.add(d, determinePerformance(sub, base, null));
         }
 
         return perf;
@@ -525,78 +767,23 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
      * @return
      */
     private double determineBasePerformance(Instances sets, Classifier base) {
-        return determinePerformance(sets, base);
+        return determinePerformance(sets, base, null);
     }
 
-    private Vector determineSubsets(Instances data, Classifier detector) {
-        Vector subsets = new Vector();
-
-        if (detector instanceof DeciderEnumerator) {
-
-            DeciderEnumerator decider = (DeciderEnumerator) detector;
-
-            int numDeciders = decider.getAmountOfDeciders();
-            int lastDecider = 0;
-
-            Boolean isMultiDecider = true;
-
-            int d = 0;
-            if (numDeciders == 1) {  // ACHTUNG: wenn nur ein Decider da ist (also keine Subunterteilung der decision spaces vorliegt)
-                d = 1;              // dann wird hier die parametrisierung für die folgende schleife angepasst.
-                numDeciders++;
-                isMultiDecider = false;
-            }
-
-            //System.out.println("Total instances: "+data.size());
-            // In order to save some ram we are going to do this iteratively
-            while (d < numDeciders) {
-                Instances copy = new Instances(data); // Make a clone of the full dataset
-
-                // Iterate over all instances, classify them and delete all instances
-                // that do not belong to the current decider from the dataset
-                Iterator i = copy.iterator();
-
-                try {
-
-                    while (i.hasNext()) {
-                        weka.core.Instance inst = (weka.core.Instance) i.next();
-
-                        double cls = detector.classifyInstance(inst);
-
-                        if (isMultiDecider) {
-                            lastDecider = decider.getLastUsedDecider();
-                            if (lastDecider != d) {
-                                i.remove();
-                            } else {
-                                if (cls == 1) {
-                                    i.remove();  // if the initial classification is correct, we wont bother!!
-                                }
-                            }
-                        } else {
-                            if (cls == 1) {
-                                i.remove();  // if the initial classification is correct, we wont bother!!
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    System.err.println("Something went wrong while trying to split into subsets:");
-                    System.err.println(e.getMessage());
-                }
-
-                subsets.add(copy);
-                d++;
-            }
-
-//            int defaultDecider = decider.getDefaultDecider();
-//            if (decider.getAmountOfDeciders() > 1 && defaultDecider >= 0) {
-//                subsets.remove(defaultDecider);
-//            }
-        }
-
-        return subsets;
+    /**
+     * Takes the error space classifier and splits the instances into subsets,
+     * each consisting of the row indices of all instances that belong to one
+     * rule or one leaf in the error space classifier.
+     *
+     * @param data
+     * @param detector
+     * @return
+     */
+    private int[][] determineSubsets(Instances data, Classifier detector) {
+        return RegionPartitioner.partition(data, detector);
     }
 
-    private double determinePerformance(Instances data, Classifier classif) {
+    private double determinePerformance(Instances data, Classifier classif, double[] predictions) {
 
         double numInstances = data.numInstances();
         double correctInstances = 0;
@@ -610,41 +797,43 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
         counter_zero = 0;
 
         try {
+            double[] errors = new double[data.numInstances()];
             Iterator in_it = data.iterator();
+            int index = 0;
             while (in_it.hasNext()) {
                 weka.core.Instance ins = (weka.core.Instance) in_it.next();
-                klasse = classif.classifyInstance(ins);
+                klasse = (predictions != null) ? predictions[index] : classif.classifyInstance(ins);
+                errors[index] = (klasse == ins.classValue()) ? 0 : 1;
+                index++;
 
                 if (klasse == ins.classValue()) {
                     correctInstances++;
                 }
 
-                double estimatedError = this.ADError.getEstimation();
-                //System.out.println("estimatedError1: " + estimatedError);
-                if(this.ADError.setInput(klasse == ins.classValue() ? 0 : 1, true)){
-                    if(this.ADError.getEstimation() > estimatedError){
-                        change = true;
-                        System.out.println("Change detected!");
-                    }else{
-                        System.out.println("no change");
-                    }
-                }
-
                 if(klasse == ins.classValue()){
                     counter_one++;
                 }else{
                     counter_zero++;
                 }
+            }
 
-                /*
-                System.out.println("Estimation: " + ADError.getEstimation());
-                System.out.println("Variance: " + ADError.getVariance());
-                System.out.println("Total: " + ADError.getTotal());
-                System.out.println("Width: " + ADError.getWidth());
-                */
-
+            // the whole error vector of the batch in one call
+            this.ADError.input(errors);
+            boolean[] raised = this.ADError.getEstimationRaised();
+            for (int c = 0; c < raised.length; c++) {
+                if(raised[c]){
+                    change = true;
+                    System.out.println("Change detected!");
+                }else{
+                    System.out.println("no change");
+                }
             }
 
+            /*
+            System.out.println("Estimation: " + ADError.getEstimation());
+            System.out.println("Window: " + ADError.getWindowLength());
+            */
+
             if(numInstances != 0) {
                 accuracy = correctInstances / numInstances;
             }else {
@@ -662,63 +851,33 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
     }
 
     /**
-     * Creates a copy of the instances and redefines the problem such that it is
-     * now important to classify the wrongly classified instances
+     * Redefines the problem into a classification problem for the instances
+     * where the base classifier errs. The result is a read-only view with the
+     * class {wrong,right} on the given instances, nothing is copied (except
+     * for the baseLabel attribute, if it is used).
      */
-    private Instances redefineProblem(Instances data) {
-
-        Instances redefInstances = new Instances(data); // deep copy of instance store
-
-//        System.out.println(reDefinedClasses.attributeStats(reDefinedClasses.classIndex()));
-//        System.out.println("Before filtering: "+wrongData.size());
-        double predictedClass = 0;
-
-        int oldClassIndex = redefInstances.classIndex();
-
-        try {
-
-            Iterator inst = redefInstances.iterator();
-
-            int num_instances = 0;
-            int num_patch = 0;
-            int num_base = 0;
-
-            while (inst.hasNext()) {
-                weka.core.Instance a = (weka.core.Instance) inst.next();
-
-                predictedClass = this.baseClassifier.classifyInstance(a); // Achtung: das hier muss "base" bleiben!!
+    private Instances redefineProblem(Instances data, double[] basePredictions) {
 
-                if (predictedClass == a.classValue()) {
-                    a.setClassValue(1);
-                    if(num_instances < batchSize.getValue()) {
-                        num_base++;
-                    }
-                } else {
-                    a.setClassValue(0);
-                    if(num_instances < batchSize.getValue()) {
-                        num_patch++;
-                    }
-                }
-                num_instances++;
-            }
+        basePredictions = basePredictionsFor(data, basePredictions);
 
-            System.out.println("Patchklassifizierer: " + (float)num_patch/batchSize.getValue()*100);
-            System.out.println("Baselassifizierer: " + (float)num_base/batchSize.getValue()*100);
-
-            if(this.useBaseClassAsAttribute.isSet()) {
-                redefInstances = addBaseClassToInstances(redefInstances);
+        int num_patch = 0;
+        int num_base = 0;
+        for (int i = 0; i < Math.min(data.numInstances(), batchSize.getValue()); i++) {
+            if (basePredictions[i] == data.instance(i).classValue()) {
+                num_base++;
+            } else {
+                num_patch++;
             }
+        }
+        System.out.println("Patchklassifizierer: " + (float)num_patch/batchSize.getValue()*100);
+        System.out.println("Baselassifizierer: " + (float)num_base/batchSize.getValue()*100);
 
-            redefInstances = changeClassToWrongRight(redefInstances);
-
-        } catch (Exception e) {
-            System.err.println("Error while classifying instance in redefineProblem");
-            System.err.println(e.getMessage());
-            System.err.println(e.fillInStackTrace());
-            System.exit(987654);
+        Instances source = data;
+        if (this.useBaseClassAsAttribute.isSet()) {
+            source = addBaseClassToInstances(data, basePredictions);
         }
 
-        return redefInstances;
+        return WrongRightView.create(source, basePredictions);
     }
 
     public void getModelDescription(StringBuilder out, int indent) {
@@ -726,69 +885,75 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
     }
 
     public double classifyInstance(weka.core.Instance inst) throws Exception {
+        PatchedModel model = this.patchedModel;  // read once, a background update may replace it at any time
+        if (model == null) {
+            return this.baseClassifier.classifyInstance(inst);
+        }
+        LastVote vote = lastVote();
+        vote.instance = null;   // not a vote, only holds the base prediction while classifying
+        vote.prediction = Double.NaN;
+        return classifyInstance(model, inst, vote);
+    }
+
+    /**
+     * Classifies an instance with the given model. The base classifier is only
+     * asked if the model needs its prediction, which is then kept in vote.
+     * Only reads the model, so any number of threads may call this at the
+     * same time (each with its own vote).
+     */
+    private double classifyInstance(PatchedModel model, weka.core.Instance inst, LastVote vote) throws Exception {
 
         int region = -1;
-        int defaultDecider = -1;
-        int amountDeciders = -1;
-        double label;
 
         weka.core.Instance origInst = inst;
 
         try {
-            if (this.regionDecider != null) {
+            if (model.regionDecider != null) {
 
                 // Handling of optional usage of the base class as an additional attribute.
-                if (this.useBaseClassAsAttribute.isSet()) {
-                    Instances tmp = new Instances(this.prototypeData); // deep copy of our empty prototypeData
-                    tmp.add(inst);
-                    tmp = addBaseClassToInstances(tmp);
-                    weka.core.Instance inst2 = tmp.get(0);
-                    inst = inst2;
-                    inst2 = null;
+                if (model.augmenter != null) {
+                    inst = model.augmenter.augment(inst, basePrediction(model, origInst, vote)); // reused buffer of this thread, no allocation
                 }
 
                 // Pre-classify instance and retrieve the used Decider
-                double regClass = this.regionDecider.classifyInstance(inst);
-
-                if (regClass == 0) {    // only if its in a "wrong" region
-
-                    Boolean isMultiDecider = false;
-                    if (this.regionDecider.getAmountOfDeciders() > 1) {
-                        isMultiDecider = true;
-                    }
-
-                    Classifier patch;
-
-                    if (isMultiDecider) {
-                        region = this.regionDecider.getLastUsedDecider();
+                Decision decision = model.regionDecider.decide(inst); // stateless
 
-//                        System.out.println("using patch region decider: "+region);
+                if (decision.getLabel() == 0) {    // only if its in a "wrong" region
 
-                        patch = (Classifier) regionPatches.elementAt(region);
-                        if (patch != null) {
-                            return patch.classifyInstance(inst);
-                        }
-                    } else {                        // case b: we only have a 0/1 information about if its in the error region or not.
-                        patch = (Classifier) regionPatches.elementAt(0);
-                        if (patch != null) {
-                            return patch.classifyInstance(inst);
-                        }
+                    // a) if the classifier can disciminate different regions, b) otherwise we only have a 0/1
+                    // information about if its in the error region or not, and there is only one patch.
+                    region = model.multiDecider ? decision.getDecider() : 0;
 
+                    Classifier patch = model.patchFor(region);  // the base classifier if there is no patch
+                    if (patch != model.baseClassifier) {
+                        return patch.classifyInstance(inst);
                     }
                 } else { // if its not in a "wrong" region, return the class from the base classifier
-                    if (this.useBaseClassAsAttribute.isSet()) {
-                        return inst.value(0);   // this has maybe already been calculated into the first attribute.
+                    if (model.augmenter != null) {
+                        return inst.value(0);   // this has already been calculated into the first attribute.
                     }
                 }
             }
         } catch (Exception e) {
             System.err.println("AdaptivePatching : Error in classifyInstance while using regionDecider.");
-            System.out.println("Region: " + region + " DefaultDecider:" + defaultDecider + " amountDeciders:" + amountDeciders + " regionPatches#:" + regionPatches.size());
+            System.out.println("Region: " + region + " regionPatches#:" + model.numPatches());
             e.printStackTrace();
             System.exit(234545345);
         }
 
-        return baseClassifier.classifyInstance(origInst);
+        return basePrediction(model, origInst, vote);
+    }
+
+    /**
+     * Returns the base classifier prediction for an instance, from vote if it
+     * is already known there.
+     */
+    private static double basePrediction(PatchedModel model, weka.core.Instance inst, LastVote vote) throws Exception {
+        if (!Double.isNaN(vote.prediction)) {
+            return vote.prediction;
+        }
+        vote.prediction = model.baseClassifier.classifyInstance(inst);
+        return vote.prediction;
     }
 
     /**
@@ -799,19 +964,20 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
      */
     public double[] getVotesForInstance(Instance samoaInstance) {
 
-        weka.core.Instance inst = this.instanceConverter.wekaInstance(samoaInstance);
+        weka.core.Instance inst = this.instanceConverter.view(samoaInstance); // reused, nothing is allocated
         int numClasses = inst.attribute(inst.classIndex()).numValues();
 
         double[] votes = new double[numClasses];
-        //System.out.println("Num Values: "+numAttributes);
 
-        for (int i = 0; i < numClasses; i++) {
-            votes[i] = 0;
-        }
-
-        if (this.baseClassifier != null) {
+        PatchedModel model = this.patchedModel;  // read once, a background update may replace it at any time
+        if (model != null) {
             try {
-                int klasse = (int) Math.round(classifyInstance(inst));
+                // remembered, so training on this instance does not need to predict it again
+                LastVote vote = lastVote();
+                vote.instance = samoaInstance;
+                vote.prediction = Double.NaN;   // only predicted by the base classifier if the model needs it
+
+                int klasse = (int) Math.round(classifyInstance(model, inst, vote));
                 votes[klasse] = 1;
             } catch (Exception e) {
                 System.err.println("Classification failed... pfft.");
@@ -821,146 +987,182 @@ public class AdaptivePatchingAdwin extends AbstractClassifier {
         return votes;
     }
 
-    public boolean isRandomizable() {
-        return true;
-    }
-
-    protected moa.core.Measurement[] getModelMeasurementsImpl() {
-        return null;
-    }
-
     /**
-     * Helper function: Create a weka classifier based on a string.
+     * Classifies a batch of instances, with the same votes as calling
+     * getVotesForInstance for each of them. The instances are converted once,
+     * and the current model scores the whole batch at once (see
+     * PatchedModel.classify). If that fails, the batch is classified again
+     * instance by instance, so a failing region decider falls back to the
+     * base classifier just like for a single instance.
      *
-     * @param options
-     * @throws Exception
+     * @param samoaInstances
+     * @return the votes per instance
      */
-    private Classifier createWekaClassifier(String[] options) throws Exception {
+    public double[][] getVotesForInstances(Instance[] samoaInstances) {
 
-        Classifier classy;
+        double[][] votes = new double[samoaInstances.length][];
+        if (samoaInstances.length == 0) {
+            return votes;
+        }
 
-        String classifierName = options[0];
-        String[] newoptions = options.clone();
-        newoptions[0] = "";
-        classy = weka.classifiers.AbstractClassifier.forName(classifierName, newoptions);
+        weka.core.Instances batch = toWekaInstances(samoaInstances);
+        int numClasses = batch.classAttribute().numValues();
+        for (int i = 0; i < votes.length; i++) {
+            votes[i] = new double[numClasses];
+        }
 
-        return classy;
+        PatchedModel model = this.patchedModel;  // one model for the whole batch
+        if (model != null) {
+            double[] labels;
+            try {
+                labels = model.classify(batch);
+            } catch (Exception e) {
+                System.err.println("Batch classification failed, classifying the instances one by one.");
+                System.err.println(e.getMessage());
+                labels = classifyOneByOne(model, batch);
+            }
+            for (int i = 0; i < votes.length; i++) {
+                if (!Double.isNaN(labels[i])) {
+                    votes[i][(int) Math.round(labels[i])] = 1;
+                }
+            }
+        }
+        return votes;
     }
 
     /**
-     * Modify the instances and insert into them the class which the base
-     * classifier had them classified as.
-     *
-     * @return
+     * Classifies the instances of a batch one after another, like
+     * getVotesForInstance does. An instance that cannot be classified at all
+     * gets NaN (no vote).
      */
-    private Instances addBaseClassToInstances(Instances origInstances) {
-
-        Instances moddedInstances = new Instances(origInstances); // deep copy
-
-        double predictedClass = 0;
-
-        // create new attribute
-        try {
-            moddedInstances = copyClassAttribute(moddedInstances, "baseLabel", 1); // das was hier attribute 1 ist, wird zu index 0 
-            moddedInstances.setClassIndex(origInstances.classIndex() + 1);
-        } catch (Exception e) {
-            System.err.println("Error while copying class Attribute for baseLabel");
-            System.err.println(e.getMessage());
-        }
-
-        Iterator inst = origInstances.iterator();
-        int index = 0;
-        while (inst.hasNext()) {
-
-            weka.core.Instance a = (weka.core.Instance) inst.next();
-            weka.core.Instance target = moddedInstances.instance(index);
-
-            predictedClass = 0;
+    private double[] classifyOneByOne(PatchedModel model, weka.core.Instances batch) {
+        double[] labels = new double[batch.numInstances()];
+        LastVote vote = lastVote();
+        for (int i = 0; i < labels.length; i++) {
+            vote.instance = null;   // not a vote, only holds the base prediction while classifying
+            vote.prediction = Double.NaN;
             try {
-                predictedClass = this.baseClassifier.classifyInstance(a); // Achtung: das hier muss "base" bleiben!!
+                labels[i] = classifyInstance(model, batch.instance(i), vote);
             } catch (Exception e) {
-                System.err.println("Error while classifying instance in addBaseClassToInstances");
-                System.err.println(a);
+                System.err.println("Classification failed... pfft.");
                 System.err.println(e.getMessage());
+                labels[i] = Double.NaN;
             }
+        }
+        return labels;
+    }
 
-            target.setValue(0, predictedClass); // index 0 ist attribute 1 
-            index++;
+    /**
+     * Classifies a batch of (Weka) instances, with the same results as
+     * classifyInstance for each of them.
+     *
+     * @param batch
+     * @return the predicted label per instance
+     * @throws Exception
+     */
+    public double[] classifyInstances(weka.core.Instances batch) throws Exception {
+        PatchedModel model = this.patchedModel;
+        if (model == null) {
+            double[] labels = new double[batch.numInstances()];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = this.baseClassifier.classifyInstance(batch.instance(i));
+            }
+            return labels;
         }
+        return model.classify(batch);
+    }
 
-        return moddedInstances;
+    /**
+     * Converts a batch of instances. The converted instances are not copied
+     * again into the returned set.
+     */
+    private weka.core.Instances toWekaInstances(Instance[] samoaInstances) {
+        InstanceStore.ReadOnlyInstances batch = new InstanceStore.ReadOnlyInstances(
+                this.instanceConverter.header(samoaInstances[0]), samoaInstances.length);
+        for (int i = 0; i < samoaInstances.length; i++) {
+            batch.append(this.instanceConverter.convert(samoaInstances[i]));
+        }
+        return batch;
     }
 
     /**
-     * Copies the class attribute to another position (first position)
+     * Returns the LastVote of the calling thread.
      *
-     * @param instances
-     * @param newName
-     * @param newAttributeIndex
      * @return
-     * @throws Exception
      */
-    public static Instances copyClassAttribute(Instances instances, String newName, int newAttributeIndex) throws Exception {
-
-        int whichAttribute = instances.classIndex();
-
-        Add filter = new Add();
-        filter.setAttributeIndex("" + newAttributeIndex);
-        filter.setAttributeName(newName);
-
-        // Copy nominal Attribute
-        if (instances.attribute(whichAttribute).isNominal()) {
-            String newNominalLabels = "";
-            Boolean first = true;
-            Enumeration<Object> o = instances.attribute(whichAttribute).enumerateValues();
-            while (o.hasMoreElements()) {
-                String s = (String) o.nextElement();
-                if (!first) {
-                    newNominalLabels += ",";
-                }
-                newNominalLabels += s;
-                first = false;
-            }
-            filter.setNominalLabels(newNominalLabels);
+    private LastVote lastVote() {
+        if (this.lastVotes == null) {   // after deserialization
+            this.lastVotes = new LastVotes();
         }
+        return this.lastVotes.get();
+    }
 
-        filter.setInputFormat(instances);
-        instances = Filter.useFilter(instances, filter);
-        return instances;
+    /**
+     * An instance that was classified by getVotesForInstance, together with
+     * the prediction of the base classifier for it (NaN if the model did not
+     * need it). Every thread reuses its own, so the two always belong
+     * together.
+     */
+    private static class LastVote {
+
+        Instance instance;
+        double prediction = Double.NaN;
     }
 
-    public static Instances changeClassToWrongRight(Instances instances) throws Exception {
+    private static class LastVotes extends ThreadLocal<LastVote> {
 
-        int whichAttribute = instances.classIndex();
+        @Override
+        protected LastVote initialValue() {
+            return new LastVote();
+        }
+    }
 
-//        System.out.println(instances.classAttribute().toString());
-        Add filter = new Add();
-        //filter.setAttributeIndex("" + (whichAttribute + 1));
-        filter.setAttributeName("newClass");
+    public boolean isRandomizable() {
+        return true;
+    }
 
-        String newNominalLabels = "wrong,right";
-        filter.setNominalLabels(newNominalLabels);
+    protected moa.core.Measurement[] getModelMeasurementsImpl() {
+        return new moa.core.Measurement[]{
+            new moa.core.Measurement("instance store size (bytes)", this.instanceStore == null ? 0 : this.instanceStore.byteFootprint()),
+            new moa.core.Measurement("peak update heap (bytes)", this.peakUpdateMemory),
+            new moa.core.Measurement("converted instances", this.instanceConverter.numConverted()),
+            new moa.core.Measurement("reused instance conversions", this.instanceConverter.numViewed()),
+            new moa.core.Measurement("rebuilds", this.updatePolicy == null ? 0 : this.updatePolicy.getNumRebuilds()),
+            new moa.core.Measurement("skipped rebuilds", this.updatePolicy == null ? 0 : this.updatePolicy.getNumSkipped()),
+            new moa.core.Measurement("coalesced rebuilds", this.backgroundUpdater == null ? 0 : this.backgroundUpdater.getNumCoalesced()),
+            new moa.core.Measurement("patch cache hits", this.patchCache == null ? 0 : this.patchCache.getNumHits()),
+            new moa.core.Measurement("patch cache misses", this.patchCache == null ? 0 : this.patchCache.getNumMisses())
+        };
+    }
 
-        filter.setInputFormat(instances);
-        instances = Filter.useFilter(instances, filter);
+    /**
+     * Helper function: Create a weka classifier based on a string.
+     *
+     * @param options
+     * @throws Exception
+     */
+    private Classifier createWekaClassifier(String[] options) throws Exception {
 
-        Iterator inst = instances.iterator();
-        int index = 0;
-        while (inst.hasNext()) {
-            weka.core.Instance a = (weka.core.Instance) inst.next();
-            a.setValue((whichAttribute + 1), a.classValue());
-            index++;
-        }
+        Classifier classy;
+
+        String classifierName = options[0];
+        String[] newoptions = options.clone();
+        newoptions[0] = "";
+        classy = weka.classifiers.AbstractClassifier.forName(classifierName, newoptions);
 
-        Remove rmfilter = new Remove();
-        rmfilter.setAttributeIndices("" + (instances.classIndex() + 1));
-        rmfilter.setInputFormat(instances);
-        instances = Filter.useFilter(instances, rmfilter);
+        return classy;
+    }
 
-        instances.setClassIndex(instances.numAttributes() - 1);
+    /**
+     * Modify the instances and insert into them the class which the base
+     * classifier had them classified as.
+     *
+     * @return
+     */
+    private Instances addBaseClassToInstances(Instances origInstances, double[] basePredictions) {
 
-//        System.out.println(instances.classAttribute().toString());
-        return instances;
+        // the header with the additional attribute is prepared once, no filter pass needed
+        return this.baseLabelAugmenter.augment(origInstances, basePredictionsFor(origInstances, basePredictions));
     }
 
     static void writeArff(String filename, Instances data) {
@@ -0,0 +1,136 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the rebuilds of a patched model on a single background thread, so that
+ * the stream does not have to wait for an update phase to finish. Rebuilds
+ * are executed one after another. If batches arrive faster than the rebuilds
+ * finish, the policy decides whether every rebuild is executed (QUEUE) or
+ * whether only the most recent one that is still waiting is kept (COALESCE).
+ *
+ * Every waiting rebuild holds a view of the Instance Store and its base
+ * predictions, so with QUEUE at most MAX_QUEUED rebuilds wait; submit blocks
+ * the stream until one of them has started. Rebuilds that are still waiting
+ * on shutdown (a reset of the learner) are dropped.
+ */
+public class BackgroundUpdater {
+
+    public static final int COALESCE = 0;
+    public static final int QUEUE = 1;
+
+    /**
+     * How many rebuilds may wait behind the running one with QUEUE
+     */
+    public static final int MAX_QUEUED = 2;
+
+    private final int policy;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore queueSlots = new Semaphore(MAX_QUEUED + 1);   // the running rebuild and the waiting ones
+    private final AtomicReference<Runnable> pending = new AtomicReference<Runnable>();
+    private final AtomicInteger coalesced = new AtomicInteger(0);
+
+    public BackgroundUpdater(int policy) {
+        this.policy = policy;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "patching-update");
+                t.setDaemon(true);  // never keep MOA alive just for an update
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Schedules a rebuild. Returns immediately, unless MAX_QUEUED rebuilds
+     * are already waiting with QUEUE.
+     *
+     * @param rebuild
+     */
+    public void submit(final Runnable rebuild) {
+
+        if (this.policy == QUEUE) {
+            try {
+                this.queueSlots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("Interrupted while waiting for a background rebuild, the rebuild is skipped.");
+                return;
+            }
+            this.executor.execute(guard(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rebuild.run();
+                    } finally {
+                        queueSlots.release();
+                    }
+                }
+            }));
+            return;
+        }
+
+        // COALESCE: only one rebuild waits at a time, newer ones replace it.
+        Runnable replaced = this.pending.getAndSet(rebuild);
+        if (replaced == null) {
+            this.executor.execute(guard(new Runnable() {
+                @Override
+                public void run() {
+                    Runnable latest = pending.getAndSet(null);
+                    if (latest != null) {
+                        latest.run();
+                    }
+                }
+            }));
+        } else {
+            this.coalesced.incrementAndGet();   // reported as a measurement, not printed on the stream thread
+        }
+    }
+
+    /**
+     * Returns the number of rebuilds that were dropped because a newer one
+     * replaced them while waiting.
+     *
+     * @return
+     */
+    public int getNumCoalesced() {
+        return this.coalesced.get();
+    }
+
+    /**
+     * Stops accepting new rebuilds and drops the waiting ones. A rebuild that
+     * is already running is allowed to finish.
+     */
+    public void shutdown() {
+        this.pending.set(null);
+        this.executor.shutdown();
+        this.executor.getQueue().clear();
+    }
+
+    private static Runnable guard(final Runnable rebuild) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebuild.run();
+                } catch (Exception e) {
+                    System.err.println("Error in background model update:");
+                    System.err.println(e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        };
+    }
+}
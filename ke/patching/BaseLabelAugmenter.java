@@ -0,0 +1,144 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Adds the prediction of the base classifier as first attribute ("baseLabel")
+ * to instances, for the useBaseClassAsAttribute option. The layout is the
+ * same as the one the Weka Add filter used to produce: baseLabel at index 0
+ * (with the labels of the class attribute if it is nominal), all original
+ * attributes shifted by one.
+ *
+ * The augmented header is created once. Single instances for prediction are
+ * written into a reused buffer (one per thread), so classifying does not
+ * allocate anything and several threads can classify at the same time.
+ */
+public class BaseLabelAugmenter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Instances header;
+    private final int numOriginalAttributes;
+
+    private transient ThreadLocal<Reused> reused;
+
+    /**
+     * @param original any instances (or just a header) of the original
+     * problem, with the class index set
+     */
+    public BaseLabelAugmenter(Instances original) {
+        this.numOriginalAttributes = original.numAttributes();
+
+        Attribute classAttribute = original.classAttribute();
+        Attribute baseLabel;
+        if (classAttribute.isNominal()) {
+            ArrayList<String> labels = new ArrayList<String>(classAttribute.numValues());
+            for (int i = 0; i < classAttribute.numValues(); i++) {
+                labels.add(classAttribute.value(i));
+            }
+            baseLabel = new Attribute("baseLabel", labels);
+        } else {
+            baseLabel = new Attribute("baseLabel");
+        }
+
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>(this.numOriginalAttributes + 1);
+        attributes.add(baseLabel);
+        for (int i = 0; i < this.numOriginalAttributes; i++) {
+            attributes.add((Attribute) original.attribute(i).copy());
+        }
+        this.header = new Instances(original.relationName(), attributes, 0);
+        this.header.setClassIndex(original.classIndex() + 1);
+        this.reused = createReused();
+    }
+
+    private ThreadLocal<Reused> createReused() {
+        return new ThreadLocal<Reused>() {
+            @Override
+            protected Reused initialValue() {
+                return new Reused(numOriginalAttributes + 1, header);
+            }
+        };
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.reused = createReused();
+    }
+
+    /**
+     * The (empty) header of augmented instances.
+     *
+     * @return
+     */
+    public Instances getHeader() {
+        return this.header;
+    }
+
+    /**
+     * Returns the augmented version of inst. The returned instance is reused,
+     * it is only valid until the next call of the same thread and must not be
+     * stored.
+     *
+     * @param inst
+     * @param basePrediction
+     * @return
+     */
+    public Instance augment(Instance inst, double basePrediction) {
+        Reused r = this.reused.get();
+        fill(r.buffer, inst, basePrediction);
+        r.instance.setWeight(inst.weight());
+        return r.instance;
+    }
+
+    /**
+     * Returns a new set with the augmented versions of all instances of data.
+     *
+     * @param data
+     * @param basePredictions one per instance of data
+     * @return
+     */
+    public Instances augment(Instances data, double[] basePredictions) {
+        InstanceStore.Buffer augmented = new InstanceStore.Buffer(this.header, data.numInstances());
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance inst = data.instance(i);
+            double[] values = new double[this.numOriginalAttributes + 1];
+            fill(values, inst, basePredictions[i]);
+            augmented.append(new DenseInstance(inst.weight(), values));  // keeps the array itself, no copy
+        }
+        return augmented;
+    }
+
+    private void fill(double[] values, Instance inst, double basePrediction) {
+        values[0] = basePrediction;
+        for (int i = 0; i < this.numOriginalAttributes; i++) {
+            values[i + 1] = inst.value(i);
+        }
+    }
+
+    /**
+     * The buffer of one thread and the instance that wraps it.
+     */
+    private static class Reused {
+
+        final double[] buffer;
+        final DenseInstance instance;
+
+        Reused(int numAttributes, Instances header) {
+            this.buffer = new double[numAttributes];
+            this.instance = new DenseInstance(1, this.buffer);   // keeps the buffer itself, no copy
+            this.instance.setDataset(header);
+        }
+    }
+}
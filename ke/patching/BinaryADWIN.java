@@ -0,0 +1,325 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.util.Arrays;
+
+/**
+ * An ExtADWIN for streams of 0 and 1, such as the errors of a classifier.
+ * A bucket only holds its number of ones, as an int: that number is the
+ * total of the bucket, and the variance of n values with k ones is
+ * k(n-k)/n, so no variances are stored or merged. The cut test itself only
+ * needs the variance of the whole window, which follows from the counts of
+ * the window.
+ *
+ * Inputs other than 0 count as 1 (-1 still means "no input", as in
+ * ExtADWIN). The detections are the ones of ExtADWIN except for rounding:
+ * ExtADWIN accumulates the variance of the window step by step, here it is
+ * computed from the counts.
+ */
+public class BinaryADWIN extends ExtADWIN {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int ROWCAPACITY = MAXBUCKETS + 1;
+
+    private int[] ones;         // bucket k of row i at i * ROWCAPACITY + (rowStart[i] + k) % ROWCAPACITY
+
+    private byte[] rowStart;
+
+    private byte[] rowCount;
+
+    private int lastBucketRow;
+
+    private int width;
+
+    private int total;          // the number of ones in the window
+
+    private int bucketNumber;
+
+    private int bucketNumberMax;
+
+    private int numberDetections;
+
+    private double widthT;
+
+    private boolean bucketDeleted;
+
+    private double[] fineDd;    // log term per fine delta, see setInput
+
+    public BinaryADWIN() {
+        super();
+    }
+
+    public BinaryADWIN(double d) {
+        super(d);
+    }
+
+    public BinaryADWIN(double d, int cl) {
+        super(d, cl);
+    }
+
+    /**
+     * Called by the constructors of ExtADWIN
+     */
+    @Override
+    protected void initBuckets() {
+        fineDd = new double[0];
+        ones = new int[8 * ROWCAPACITY];
+        rowStart = new byte[8];
+        rowCount = new byte[8];
+        lastBucketRow = 0;
+        width = 0;
+        total = 0;
+        bucketNumber = 0;
+    }
+
+    @Override
+    public boolean getChange() {
+        return bucketDeleted;
+    }
+
+    @Override
+    public void resetChange() {
+        bucketDeleted = false;
+    }
+
+    @Override
+    public int getBucketsUsed() {
+        return bucketNumberMax;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getNumberDetections() {
+        return numberDetections;
+    }
+
+    @Override
+    public double getTotal() {
+        return total;
+    }
+
+    @Override
+    public double getEstimation() {
+        return (double) total / width;
+    }
+
+    @Override
+    public double getVariance() {
+        return ((double) total * (width - total) / width) / width;
+    }
+
+    @Override
+    public double getWidthT() {
+        return widthT;
+    }
+
+    private int slot(int row, int k) {
+        int pos = rowStart[row] + k;
+        if (pos >= ROWCAPACITY) {
+            pos -= ROWCAPACITY;
+        }
+        return row * ROWCAPACITY + pos;
+    }
+
+    private void insertBucket(int row, int bucketOnes) {
+        ones[slot(row, rowCount[row])] = bucketOnes;
+        rowCount[row]++;
+    }
+
+    private void removeBuckets(int row, int number) {
+        rowStart[row] = (byte) ((rowStart[row] + number) % ROWCAPACITY);
+        rowCount[row] -= number;
+    }
+
+    private void addRow() {
+        lastBucketRow++;
+        if (lastBucketRow == rowCount.length) {
+            int rows = 2 * rowCount.length;
+            ones = Arrays.copyOf(ones, rows * ROWCAPACITY);
+            rowStart = Arrays.copyOf(rowStart, rows);
+            rowCount = Arrays.copyOf(rowCount, rows);
+        }
+        rowStart[lastBucketRow] = 0;
+        rowCount[lastBucketRow] = 0;
+    }
+
+    private void insertElement(boolean one) {
+        width++;
+        insertBucket(0, one ? 1 : 0);
+        bucketNumber++;
+        if (bucketNumber > bucketNumberMax) {
+            bucketNumberMax = bucketNumber;
+        }
+        if (one) {
+            total++;
+        }
+        compressBuckets();
+    }
+
+    @Override
+    public int deleteElement() {
+        int n1 = 1 << lastBucketRow;
+        width -= n1;
+        total -= ones[slot(lastBucketRow, 0)];
+
+        removeBuckets(lastBucketRow, 1);
+        bucketNumber--;
+        if (rowCount[lastBucketRow] == 0) {
+            lastBucketRow--;
+        }
+        return n1;
+    }
+
+    @Override
+    public void compressBuckets() {
+        int i = 0;
+        do {
+            //If the row is full, merge its two oldest buckets into the next row
+            if (rowCount[i] == MAXBUCKETS + 1) {
+                if (i == lastBucketRow) {
+                    addRow();
+                }
+                insertBucket(i + 1, ones[slot(i, 0)] + ones[slot(i, 1)]);
+                bucketNumber++;
+                removeBuckets(i, 2);
+                if (rowCount[i + 1] <= MAXBUCKETS) {
+                    break;
+                }
+            } else {
+                break;
+            }
+            i++;
+        } while (i <= lastBucketRow);
+    }
+
+    @Override
+    public boolean setInput(double intEntrada, double delta, boolean deleteElements, double[] fineDeltas, boolean[] fired) {
+        boolean blnChange = false;
+        boolean blnExit = false;
+        boolean blnScannedAll = true;
+        int numFine = (fineDeltas == null) ? 0 : fineDeltas.length;
+        if (numFine > 0) {
+            Arrays.fill(fired, 0, numFine, false);
+            if (fineDd.length < numFine) {
+                fineDd = new double[numFine];
+            }
+        }
+
+        if (intEntrada != -1) {
+            insertElement(intEntrada != 0);
+            bucketDeleted = false;
+        }
+
+        // ExtADWIN's time never advances, so its clock test always holds
+        if (width > mintMinimLongitudWindow) {
+            boolean blnReduceWidth = true;
+
+            while (blnReduceWidth) {
+                blnReduceWidth = false;
+                blnExit = false;
+                // lengths and ones of both sub-windows, also as doubles (they are
+                // exact, and int to double conversions in this loop are slow)
+                int n0 = 0;
+                int n1 = width;
+                double d0 = 0;
+                double d1 = width;
+                double k0 = 0;
+                double k1 = total;
+
+                // the same for every candidate cut until the window is reduced
+                double dd = Math.log(2 * Math.log(width) / delta);
+                double v = getVariance();
+                for (int j = 0; j < numFine; j++) {
+                    fineDd[j] = Math.log(2 * Math.log(width) / fineDeltas[j]);
+                    fired[j] = false;
+                }
+                blnScannedAll = true;
+
+                int i = lastBucketRow;
+                do {
+                    int size = 1 << i;
+                    double dsize = size;
+                    for (int k = 0; k <= (rowCount[i] - 1); k++) {
+                        double bucketOnes = ones[slot(i, k)];
+                        n0 += size;
+                        n1 -= size;
+                        d0 += dsize;
+                        d1 -= dsize;
+                        k0 += bucketOnes;
+                        k1 -= bucketOnes;
+
+                        if (i == 0 && k == rowCount[i] - 1) {
+                            blnExit = true;
+                            break;
+                        }
+                        double absvalue = k0 / d0 - k1 / d1;
+                        boolean longEnough = (n1 > mintMinWinLength + 1 && n0 > mintMinWinLength + 1);
+                        if (longEnough) {
+                            for (int j = 0; j < numFine; j++) {
+                                if (!fired[j] && cut(d0, d1, v, fineDd[j], absvalue)) {
+                                    fired[j] = true;
+                                }
+                            }
+                        }
+                        if (longEnough && cut(d0, d1, v, dd, absvalue)) {
+                            if (intEntrada != -1) {
+                                bucketDeleted = true;
+                                blnReduceWidth = true;
+                            }
+
+                            blnChange = true;
+                            if (width > 0) { //Reduce width of the window
+                                if (deleteElements) {
+                                    n0 -= deleteElement();
+                                }
+                                blnExit = true;
+                                blnScannedAll = false;
+                                break;
+                            }
+                        }
+                    }//Next k
+                    i--;
+                } while (!blnExit && i >= 0);
+            }
+        }
+
+        // see ExtADWIN: the fine deltas only count on a complete pass
+        if (!blnScannedAll) {
+            for (int j = 0; j < numFine; j++) {
+                fired[j] = setInput(-1, fineDeltas[j], false);
+            }
+        }
+
+        if (intEntrada != -1) {
+            widthT += width;
+            if (blnChange) {
+                numberDetections++;
+            }
+        }
+        return blnChange;
+    }
+
+    /**
+     * ExtADWIN's blnCutexpression with the window lengths as doubles (the
+     * same values, but int to double conversions in this loop are slow)
+     */
+    private boolean cut(double n0, double n1, double v, double dd, double absvalue) {
+        double m = ((double) 1 / (n0 - mintMinWinLength + 1)) + ((double) 1 / (n1 - mintMinWinLength + 1));
+        double epsilon = Math.sqrt(2 * m * v * dd) + (double) 2 / 3 * dd * m;
+        return (Math.abs(absvalue) > epsilon);
+    }
+
+    @Override
+    public String getEstimatorInfo() {
+        return "BinaryADWIN;;";
+    }
+}
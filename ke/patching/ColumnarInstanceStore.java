@@ -0,0 +1,177 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * An InstanceStore that does not keep the Weka instances, but copies their
+ * values column by column into one primitive block per batch. This saves the
+ * object, array and header reference of every single instance. Reading the
+ * store (getInstances/getBatch) does not copy the values back: every row is
+ * a small read-only instance (ColumnInstance) that reads its values from the
+ * block. Copies of a row are ordinary Weka instances.
+ *
+ * The block can live on the heap or off-heap (direct buffer), and values can
+ * be stored as float instead of double. Float halves the memory, but numeric
+ * values lose precision (nominal values and missing values are kept exactly).
+ * Only numeric and nominal attributes (and dates, unless stored as float) are
+ * supported, other headers are rejected.
+ */
+public class ColumnarInstanceStore extends InstanceStore {
+
+    private final boolean useFloat;
+    private final boolean offHeap;
+
+    public ColumnarInstanceStore(int numBatches, boolean useFloat, boolean offHeap) {
+        super(numBatches);
+        this.useFloat = useFloat;
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    protected Batch createBatch(Instances inst) {
+        return new ColumnBatch(inst, this.header, this.useFloat, this.offHeap);
+    }
+
+    @Override
+    protected void checkHeader(Instances header) {
+        for (int att = 0; att < header.numAttributes(); att++) {
+            Attribute attribute = header.attribute(att);
+            boolean supported = attribute.isNominal() || (attribute.isNumeric() && !attribute.isDate())
+                    || (attribute.isDate() && !this.useFloat);   // milliseconds do not fit into a float
+            if (!supported) {
+                throw new IllegalArgumentException("The columnar instance store" + (this.useFloat ? " (float)" : "")
+                        + " cannot store attribute " + attribute.name() + " of type " + Attribute.typeToString(attribute)
+                        + ", choose the Rows layout.");
+            }
+        }
+    }
+
+    @Override
+    protected boolean cacheView() {
+        return false;   // the rows are only references into the blocks, they are cheap to create again
+    }
+
+    /**
+     * The values of one batch, column-major: all values of attribute 0, then
+     * all values of attribute 1 and so on. Weights are only stored if at least
+     * one of them is not 1.
+     */
+    static class ColumnBatch implements Batch {
+
+        private final Instances header;
+        private final int numRows;
+        private final int numAttributes;
+        private final DoubleBuffer doubles;
+        private final FloatBuffer floats;
+        private final double[] weights;
+        private final boolean offHeap;
+
+        ColumnBatch(Instances inst, Instances header, boolean useFloat, boolean offHeap) {
+            this.header = header;
+            this.numRows = inst.numInstances();
+            this.numAttributes = inst.numAttributes();
+            this.offHeap = offHeap;
+
+            int numValues = this.numRows * this.numAttributes;
+            if (useFloat) {
+                this.floats = offHeap
+                        ? ByteBuffer.allocateDirect(4 * numValues).order(ByteOrder.nativeOrder()).asFloatBuffer()
+                        : FloatBuffer.allocate(numValues);
+                this.doubles = null;
+            } else {
+                this.doubles = offHeap
+                        ? ByteBuffer.allocateDirect(8 * numValues).order(ByteOrder.nativeOrder()).asDoubleBuffer()
+                        : DoubleBuffer.allocate(numValues);
+                this.floats = null;
+            }
+
+            double[] w = null;
+            for (int row = 0; row < this.numRows; row++) {
+                Instance instance = inst.instance(row);
+                for (int att = 0; att < this.numAttributes; att++) {
+                    int pos = att * this.numRows + row;
+                    if (useFloat) {
+                        this.floats.put(pos, (float) instance.value(att));
+                    } else {
+                        this.doubles.put(pos, instance.value(att));
+                    }
+                }
+                if (instance.weight() != 1 && w == null) {
+                    w = new double[this.numRows];
+                    Arrays.fill(w, 0, row, 1);
+                }
+                if (w != null) {
+                    w[row] = instance.weight();
+                }
+            }
+            this.weights = w;
+        }
+
+        @Override
+        public int numInstances() {
+            return this.numRows;
+        }
+
+        @Override
+        public Instance instance(int index) {
+            Instance instance = new ColumnInstance(this, index);
+            instance.setDataset(this.header);
+            return instance;
+        }
+
+        double value(int att, int row) {
+            int pos = att * this.numRows + row;
+            return (this.doubles != null) ? this.doubles.get(pos) : this.floats.get(pos);
+        }
+
+        @Override
+        public long byteFootprint() {
+            long bytes = (long) this.numRows * this.numAttributes * (this.doubles != null ? 8 : 4);
+            if (this.weights != null) {
+                bytes += 16 + 8L * this.weights.length;
+            }
+            return bytes + (this.offHeap ? 0 : 16) + 64;  // block header and the batch object itself
+        }
+    }
+
+    /**
+     * One row of a batch. It only knows its batch and its position, the values
+     * are read from the block.
+     */
+    static class ColumnInstance extends InstanceStore.ReadOnlyInstance {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ColumnBatch batch;
+        private final int row;
+
+        ColumnInstance(ColumnBatch batch, int row) {
+            super(batch.weights == null ? 1 : batch.weights[row]);
+            this.batch = batch;
+            this.row = row;
+        }
+
+        @Override
+        public double value(int attIndex) {
+            return this.batch.value(attIndex, this.row);
+        }
+
+        @Override
+        public int numAttributes() {
+            return this.batch.numAttributes;
+        }
+    }
+}
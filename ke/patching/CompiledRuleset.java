@@ -0,0 +1,325 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import weka.classifiers.rules.Rule;
+import weka.core.Instance;
+
+/**
+ * A finished ExtRip ruleset in a flat form for fast scoring. All antecedents
+ * of all rules are stored in parallel primitive arrays (attribute index,
+ * operator, threshold), rule i owns the antecedents from ruleStart[i] to
+ * ruleStart[i+1]. Finding the first covering rule is a tight loop without
+ * virtual calls or Attribute lookups.
+ *
+ * Alternatively the rules can be turned into a chain of method handles, which
+ * the JIT can inline into one piece of code for the whole ruleset.
+ *
+ * The semantics are the ones of ExtRip: a rule covers an instance if all its
+ * antecedents cover it, missing values are never covered, the first covering
+ * rule decides.
+ */
+public class CompiledRuleset implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Scoring backends
+     */
+    public static final int BACKEND_RULES = 0;     // the rule objects themselves
+    public static final int BACKEND_ARRAYS = 1;
+    public static final int BACKEND_METHOD_HANDLES = 2;
+
+    /**
+     * Operators of antecedents
+     */
+    static final byte LESS_OR_EQUAL = 0;     // numeric, first bag
+    static final byte GREATER_OR_EQUAL = 1;  // numeric, second bag
+    static final byte EQUAL = 2;             // nominal
+
+    private final int[] attributes;
+    private final byte[] operators;
+    private final double[] thresholds;
+    private final int[] ruleStart;
+    private final int numRules;
+
+    private transient MethodHandle matcher;
+
+    private CompiledRuleset(int[] attributes, byte[] operators, double[] thresholds, int[] ruleStart) {
+        this.attributes = attributes;
+        this.operators = operators;
+        this.thresholds = thresholds;
+        this.ruleStart = ruleStart;
+        this.numRules = ruleStart.length - 1;
+    }
+
+    /**
+     * Compiles a ruleset learned by ExtRip. Returns null if it contains
+     * anything that is not an ExtRip rule.
+     *
+     * @param ruleset
+     * @return
+     */
+    public static CompiledRuleset compile(ArrayList<Rule> ruleset) {
+
+        int numAntds = 0;
+        for (int r = 0; r < ruleset.size(); r++) {
+            if (!(ruleset.get(r) instanceof ExtRip.RipperRule)) {
+                return null;
+            }
+            numAntds += ((ExtRip.RipperRule) ruleset.get(r)).getAntds().size();
+        }
+
+        int[] attributes = new int[numAntds];
+        byte[] operators = new byte[numAntds];
+        double[] thresholds = new double[numAntds];
+        int[] ruleStart = new int[ruleset.size() + 1];
+
+        int pos = 0;
+        for (int r = 0; r < ruleset.size(); r++) {
+            ruleStart[r] = pos;
+            ArrayList<ExtRip.Antd> antds = ((ExtRip.RipperRule) ruleset.get(r)).getAntds();
+            for (int a = 0; a < antds.size(); a++) {
+                ExtRip.Antd antd = antds.get(a);
+                attributes[pos] = antd.getAttr().index();
+                if (antd instanceof ExtRip.NumericAntd) {
+                    operators[pos] = ((int) antd.getAttrValue() == 0) ? LESS_OR_EQUAL : GREATER_OR_EQUAL;
+                    thresholds[pos] = ((ExtRip.NumericAntd) antd).getSplitPoint();
+                } else if (antd instanceof ExtRip.NominalAntd) {
+                    operators[pos] = EQUAL;
+                    thresholds[pos] = (int) antd.getAttrValue();
+                } else {
+                    return null;
+                }
+                pos++;
+            }
+        }
+        ruleStart[ruleset.size()] = pos;
+
+        return new CompiledRuleset(attributes, operators, thresholds, ruleStart);
+    }
+
+    public int numRules() {
+        return this.numRules;
+    }
+
+    /**
+     * Returns the index of the first rule that covers the instance, or -1.
+     *
+     * @param inst
+     * @return
+     */
+    public int findRule(Instance inst) {
+        for (int r = 0; r < this.numRules; r++) {
+            int end = this.ruleStart[r + 1];
+            int a = this.ruleStart[r];
+            while (a < end && holds(this.operators[a], inst.value(this.attributes[a]), this.thresholds[a])) {
+                a++;
+            }
+            if (a == end) {
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first rule that covers the given attribute
+     * values (in the layout of the training data), or -1.
+     *
+     * @param values
+     * @return
+     */
+    public int findRule(double[] values) {
+        for (int r = 0; r < this.numRules; r++) {
+            int end = this.ruleStart[r + 1];
+            int a = this.ruleStart[r];
+            while (a < end && holds(this.operators[a], values[this.attributes[a]], this.thresholds[a])) {
+                a++;
+            }
+            if (a == end) {
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first covering rule for a whole batch of instances whose
+     * values are given column by column (columns[attribute][row], columns of
+     * attributes that are not used by any rule may be null). Works one
+     * antecedent at a time: the rows that are still candidates for a rule are
+     * kept in a selection vector, and each antecedent runs as a tight loop
+     * over one column.
+     *
+     * @param columns
+     * @param numRows
+     * @param rules receives the index of the first covering rule per row, or -1
+     */
+    public void findRules(double[][] columns, int numRows, int[] rules) {
+        Arrays.fill(rules, 0, numRows, -1);
+
+        int[] open = new int[numRows];      // rows that no rule has covered yet
+        for (int row = 0; row < numRows; row++) {
+            open[row] = row;
+        }
+        int numOpen = numRows;
+        int[] candidates = new int[numRows];
+
+        for (int r = 0; r < this.numRules && numOpen > 0; r++) {
+            System.arraycopy(open, 0, candidates, 0, numOpen);
+            int numCandidates = numOpen;
+
+            for (int a = this.ruleStart[r]; a < this.ruleStart[r + 1] && numCandidates > 0; a++) {
+                double[] column = columns[this.attributes[a]];
+                double threshold = this.thresholds[a];
+                int kept = 0;
+                switch (this.operators[a]) {
+                    case LESS_OR_EQUAL:
+                        for (int i = 0; i < numCandidates; i++) {
+                            int row = candidates[i];
+                            if (column[row] <= threshold) {
+                                candidates[kept++] = row;
+                            }
+                        }
+                        break;
+                    case GREATER_OR_EQUAL:
+                        for (int i = 0; i < numCandidates; i++) {
+                            int row = candidates[i];
+                            if (column[row] >= threshold) {
+                                candidates[kept++] = row;
+                            }
+                        }
+                        break;
+                    default:
+                        for (int i = 0; i < numCandidates; i++) {
+                            int row = candidates[i];
+                            if (holds(EQUAL, column[row], threshold)) {
+                                candidates[kept++] = row;
+                            }
+                        }
+                }
+                numCandidates = kept;
+            }
+
+            if (numCandidates > 0) {
+                for (int i = 0; i < numCandidates; i++) {
+                    rules[candidates[i]] = r;
+                }
+                int kept = 0;
+                for (int i = 0; i < numOpen; i++) {
+                    if (rules[open[i]] < 0) {
+                        open[kept++] = open[i];
+                    }
+                }
+                numOpen = kept;
+            }
+        }
+    }
+
+    /**
+     * Returns whether any antecedent tests the given attribute.
+     *
+     * @param attribute
+     * @return
+     */
+    public boolean usesAttribute(int attribute) {
+        for (int a = 0; a < this.attributes.length; a++) {
+            if (this.attributes[a] == attribute) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same as findRule(inst), but evaluated by a chain of method handles that
+     * is built on first use.
+     *
+     * @param inst
+     * @return
+     */
+    public int findRuleByHandles(Instance inst) {
+        MethodHandle m = this.matcher;
+        if (m == null) {
+            m = buildMatcher();
+            this.matcher = m;
+        }
+        try {
+            return (int) m.invokeExact(inst);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Compiled ruleset failed", t);
+        }
+    }
+
+    /**
+     * NaN (missing) compares false with everything, so missing values are
+     * never covered.
+     */
+    private static boolean holds(byte operator, double v, double threshold) {
+        switch (operator) {
+            case LESS_OR_EQUAL:
+                return v <= threshold;
+            case GREATER_OR_EQUAL:
+                return v >= threshold;
+            default:
+                return !Double.isNaN(v) && (int) v == (int) threshold;
+        }
+    }
+
+    static boolean lessOrEqual(Instance inst, int att, double threshold) {
+        return inst.value(att) <= threshold;
+    }
+
+    static boolean greaterOrEqual(Instance inst, int att, double threshold) {
+        return inst.value(att) >= threshold;
+    }
+
+    static boolean equal(Instance inst, int att, double threshold) {
+        double v = inst.value(att);
+        return !Double.isNaN(v) && (int) v == (int) threshold;
+    }
+
+    /**
+     * Builds (Instance)int: nested guards, one per antecedent and rule, that
+     * end in the constant index of the first covering rule (or -1).
+     */
+    private MethodHandle buildMatcher() {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType test = MethodType.methodType(boolean.class, Instance.class, int.class, double.class);
+            MethodHandle[] ops = new MethodHandle[3];
+            ops[LESS_OR_EQUAL] = lookup.findStatic(CompiledRuleset.class, "lessOrEqual", test);
+            ops[GREATER_OR_EQUAL] = lookup.findStatic(CompiledRuleset.class, "greaterOrEqual", test);
+            ops[EQUAL] = lookup.findStatic(CompiledRuleset.class, "equal", test);
+
+            MethodHandle no = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false), 0, Instance.class);
+            MethodHandle yes = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, true), 0, Instance.class);
+
+            MethodHandle result = MethodHandles.dropArguments(MethodHandles.constant(int.class, -1), 0, Instance.class);
+            for (int r = this.numRules - 1; r >= 0; r--) {
+                MethodHandle covers = yes;
+                for (int a = this.ruleStart[r + 1] - 1; a >= this.ruleStart[r]; a--) {
+                    MethodHandle antd = MethodHandles.insertArguments(ops[this.operators[a]], 1, this.attributes[a], this.thresholds[a]);
+                    covers = MethodHandles.guardWithTest(antd, covers, no);
+                }
+                MethodHandle hit = MethodHandles.dropArguments(MethodHandles.constant(int.class, r), 0, Instance.class);
+                result = MethodHandles.guardWithTest(covers, hit, result);
+            }
+            return result;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
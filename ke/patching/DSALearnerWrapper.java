@@ -35,6 +35,11 @@ public class DSALearnerWrapper extends AbstractClassifier
 
     private int lastUsedDecider = 0;
 
+    // decisions of classifiers that do not know about regions (binary problem, decider = label)
+    private static final Decision WRONG = new Decision(0, 0);
+    private static final Decision RIGHT = new Decision(1, 1);
+    private static final Decision NOT_BUILT = new Decision(-1, 0);
+
     
     private Classifier classifier;
     private Boolean isBuilt = false;
@@ -48,6 +53,19 @@ public class DSALearnerWrapper extends AbstractClassifier
         this.classifier = classy;
     }
 
+    /**
+     * Wraps a classifier that has already been built, e.g. a snapshot of an
+     * incremental one, so buildClassifier does not have to be called.
+     *
+     * @param classy
+     * @param isBuilt
+     */
+    public DSALearnerWrapper(Classifier classy, boolean isBuilt) {
+
+        this.classifier = classy;
+        this.isBuilt = isBuilt;
+    }
+
     @Override
     public void buildClassifier(Instances data) {
 
@@ -77,6 +95,56 @@ public class DSALearnerWrapper extends AbstractClassifier
         return label;
     }
 
+    /**
+     * Classifies the instance and returns the label together with the decider.
+     * Unlike classifyInstance, this does not remember anything, so one
+     * wrapper can be used by several threads at the same time.
+     *
+     * @param a
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public Decision decide(Instance a) throws Exception {
+
+        if (!isBuilt) {
+            return NOT_BUILT;
+        }
+        if (classifier instanceof DeciderEnumerator) {
+            return ((DeciderEnumerator) classifier).decide(a);
+        }
+
+        double label = classifier.classifyInstance(a);
+        if (label == 0) {
+            return WRONG;
+        } else if (label == 1) {
+            return RIGHT;
+        }
+        return new Decision(label, (label > 0) ? 1 : 0);
+    }
+
+    /**
+     * Same as decide(a) for every instance of data. Classifiers that know
+     * about regions may score the whole batch at once.
+     *
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public Decision[] decide(Instances data) throws Exception {
+
+        if (isBuilt && classifier instanceof DeciderEnumerator) {
+            return ((DeciderEnumerator) classifier).decide(data);
+        }
+
+        Decision[] decisions = new Decision[data.numInstances()];
+        for (int i = 0; i < decisions.length; i++) {
+            decisions[i] = decide(data.instance(i));
+        }
+        return decisions;
+    }
+
     /**
      * Returns the total amount of deciders that exist (means: amount of rules,
      * or amount of leafs in the decision tree)
@@ -121,15 +189,62 @@ public class DSALearnerWrapper extends AbstractClassifier
         return 0;
     }
 
-    public int getRegionId(Instance a) {
-        
-        if(this.classifier instanceof ExtRip) {
-            ExtRip er = (ExtRip) classifier;
-            return er.getLastUsedDecider();
+    /**
+     * Returns a canonical description of the region of a decider, so the same
+     * region can be recognized after the classifier has been rebuilt. Only
+     * rule learners that can describe their rules (ExtRip) have one.
+     *
+     * @param decider
+     * @return the signature, or null if the region cannot be described
+     */
+    public String getRegionSignature(int decider) {
+
+        if (isBuilt && classifier instanceof ExtRip) {
+            return ((ExtRip) classifier).getRuleSignature(decider);
+        }
+        if (isBuilt && classifier instanceof DSALearnerWrapper) {
+            return ((DSALearnerWrapper) classifier).getRegionSignature(decider);
+        }
+
+        return null;
+    }
+
+    /**
+     * Lets the next build of the wrapped ExtRip start from the rules of the
+     * ExtRip of a previous wrapper (see ExtRip.setWarmStart). Other
+     * classifiers are always built from scratch.
+     *
+     * @param previous the wrapper of the previous build, may be null
+     */
+    public void setWarmStart(DSALearnerWrapper previous) {
+
+        ExtRip rip = getExtRip();
+        if (rip != null) {
+            rip.setWarmStart(previous == null ? null : previous.getExtRip());
         }
+    }
+
+    /**
+     * The wrapped ExtRip, also through nested wrappers, or null
+     *
+     * @return
+     */
+    private ExtRip getExtRip() {
+
+        if (classifier instanceof ExtRip) {
+            return (ExtRip) classifier;
+        }
+        if (classifier instanceof DSALearnerWrapper) {
+            return ((DSALearnerWrapper) classifier).getExtRip();
+        }
+
+        return null;
+    }
+
+    public int getRegionId(Instance a) {
         
         try {
-            return (int) classifyInstance(a);
+            return decide(a).getDecider();
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }
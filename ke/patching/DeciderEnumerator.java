@@ -5,6 +5,9 @@
  */
 package moa.tud.ke.patching;
 
+import weka.core.Instance;
+import weka.core.Instances;
+
 /**
  * A Decider is the element of a classifier that creates the final class decision.
  * In Rulesets, it is the rule that is triggered,
@@ -23,10 +26,30 @@ public interface DeciderEnumerator {
     
     /**
      * Returns the idenfifier of the decider that was responsible for the last 
-     * instance that was classified
+     * instance that was classified.
+     * Only meaningful if a single thread classifies, use decide() otherwise.
      * @return 
      */
     public int getLastUsedDecider();
+
+    /**
+     * Classifies the instance and returns the class together with the decider
+     * that was responsible for it. Does not change any state of the
+     * classifier, so it may be called from several threads at the same time.
+     * @param inst
+     * @return
+     * @throws Exception 
+     */
+    public Decision decide(Instance inst) throws Exception;
+
+    /**
+     * Same as decide(inst) for every instance of data, so classifiers that can
+     * score many instances at once more efficiently may do so.
+     * @param data
+     * @return one decision per instance of data
+     * @throws Exception 
+     */
+    public Decision[] decide(Instances data) throws Exception;
     
     /**
      * Returns the id of the "default rule" which covers all previously
@@ -0,0 +1,48 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.io.Serializable;
+
+/**
+ * The result of classifying an instance with a DeciderEnumerator: the class
+ * label together with the decider (rule, leaf) that produced it. Decisions are
+ * immutable, so classifiers create them once per decider and hand out the
+ * same object for every instance that decider classifies.
+ *
+ * @author SKauschke
+ */
+public class Decision implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double label;
+    private final int decider;
+
+    public Decision(double label, int decider) {
+        this.label = label;
+        this.decider = decider;
+    }
+
+    /**
+     * The predicted class (index for nominal classes).
+     *
+     * @return
+     */
+    public double getLabel() {
+        return label;
+    }
+
+    /**
+     * The identifier of the decider responsible for the label, -1 if there
+     * was none.
+     *
+     * @return
+     */
+    public int getDecider() {
+        return decider;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import moa.classifiers.core.driftdetection.ChangeDetector;
+import moa.classifiers.core.driftdetection.DDM;
+import moa.classifiers.core.driftdetection.EDDM;
+import moa.classifiers.core.driftdetection.HDDM_A_Test;
+import moa.classifiers.core.driftdetection.PageHinkleyDM;
+
+/**
+ * Watches the errors of the base classifier (0 = correct, 1 = wrong) for
+ * changes and recommends how many of the latest instances still belong to
+ * the current concept. The adaptive Patching classes size their Instance
+ * Store with that window length.
+ *
+ * ADWIN keeps the window itself and costs O(log n) per error. CUSUM
+ * compares the errors with their mean over a sliding window and estimates
+ * where a change started, its window is the number of errors since then. The
+ * other detectors are MOA's constant-time detectors; their window is the
+ * number of errors seen since their last detected change.
+ */
+public abstract class ErrorChangeDetector implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Detectors that can be chosen with create(...), in the order of the
+     * driftDetector option.
+     */
+    public static final String[] DETECTORS = {"ADWIN", "DDM", "EDDM", "HDDM_A", "PageHinkley", "CUSUM"};
+
+    /**
+     * Creates one of the DETECTORS.
+     *
+     * @param detector index into DETECTORS
+     * @param delta the confidence of ADWIN
+     * @param fineDelta the confidence of the second ADWIN check, 0 for none
+     * @param clock the clock of ADWIN
+     * @param binary whether ADWIN counts the errors as integers (BinaryADWIN)
+     * @param cusumWindow the number of latest errors CUSUM takes the mean of
+     * @return
+     */
+    public static ErrorChangeDetector create(int detector, double delta, double fineDelta, int clock, boolean binary, int cusumWindow) {
+        switch (detector) {
+            case 1:
+                return new MOADetector(new DDM());
+            case 2:
+                return new MOADetector(new EDDM());
+            case 3:
+                HDDM_A_Test hddm = new HDDM_A_Test();
+                hddm.oneSidedTestOption.setChosenIndex(0);  // only rises of the error
+                return new MOADetector(hddm);
+            case 4:
+                return new MOADetector(new PageHinkleyDM());
+            case 5:
+                return new WindowedCusum(cusumWindow);
+            default:
+                return new Adwin(binary ? new BinaryADWIN(delta, clock) : new ExtADWIN(delta, clock), fineDelta);
+        }
+    }
+
+    /**
+     * Feeds the errors of a batch, in order.
+     *
+     * @param errors 0 or 1 per instance
+     * @return the positions in errors at which a change was detected
+     */
+    public abstract int[] input(double[] errors);
+
+    /**
+     * For each change of the last input: whether the error went up with it
+     *
+     * @return
+     */
+    public abstract boolean[] getEstimationRaised();
+
+    /**
+     * The positions of the last input at which the weaker signal fired: the
+     * fine check of ADWIN, the warning zone of the other detectors
+     *
+     * @return
+     */
+    public abstract int[] getWarnings();
+
+    /**
+     * How many of the latest instances belong to the current concept
+     *
+     * @return
+     */
+    public abstract int getWindowLength();
+
+    /**
+     * The current estimation of the error rate
+     *
+     * @return
+     */
+    public abstract double getEstimation();
+
+    /**
+     * ExtADWIN (or BinaryADWIN), its width is the window length.
+     */
+    static class Adwin extends ErrorChangeDetector {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ExtADWIN adwin;
+        private final double fineDelta;
+
+        Adwin(ExtADWIN adwin, double fineDelta) {
+            this.adwin = adwin;
+            this.fineDelta = fineDelta;
+        }
+
+        @Override
+        public int[] input(double[] errors) {
+            return this.adwin.setInput(errors, true, this.fineDelta);
+        }
+
+        @Override
+        public boolean[] getEstimationRaised() {
+            return this.adwin.getEstimationRaised();
+        }
+
+        @Override
+        public int[] getWarnings() {
+            return this.adwin.getFineChanges();
+        }
+
+        @Override
+        public int getWindowLength() {
+            return this.adwin.getWidth();
+        }
+
+        @Override
+        public double getEstimation() {
+            return this.adwin.getEstimation();
+        }
+    }
+
+    /**
+     * One of MOA's change detectors. They only look at the current statistics
+     * of the error (O(1) per error) and signal rises of the error rate, so
+     * every change counts as raised. The window starts again at each change.
+     */
+    static class MOADetector extends ErrorChangeDetector {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ChangeDetector detector;
+        private int sinceChange = 0;
+        private int[] lastWarnings = new int[0];
+        private boolean[] lastRaised = new boolean[0];
+
+        MOADetector(ChangeDetector detector) {
+            this.detector = detector;
+            this.detector.prepareForUse();
+        }
+
+        @Override
+        public int[] input(double[] errors) {
+            int[] changes = new int[errors.length];
+            int[] warnings = new int[errors.length];
+            int numChanges = 0;
+            int numWarnings = 0;
+
+            for (int i = 0; i < errors.length; i++) {
+                this.detector.input(errors[i]);
+                this.sinceChange++;
+                if (this.detector.getChange()) {
+                    changes[numChanges++] = i;
+                    this.sinceChange = 0;
+                } else if (this.detector.getWarningZone()) {
+                    warnings[numWarnings++] = i;
+                }
+            }
+
+            this.lastWarnings = Arrays.copyOf(warnings, numWarnings);
+            this.lastRaised = new boolean[numChanges];
+            Arrays.fill(this.lastRaised, true);
+            return Arrays.copyOf(changes, numChanges);
+        }
+
+        @Override
+        public boolean[] getEstimationRaised() {
+            return this.lastRaised;
+        }
+
+        @Override
+        public int[] getWarnings() {
+            return this.lastWarnings;
+        }
+
+        @Override
+        public int getWindowLength() {
+            return this.sinceChange;
+        }
+
+        @Override
+        public double getEstimation() {
+            return this.detector.getEstimation();
+        }
+    }
+
+    /**
+     * One-sided CUSUM of the errors against their mean over the last window
+     * errors (O(1) per error). The sum restarts at 0 whenever the errors are
+     * not above the mean, so the last restart before a change is detected is
+     * where the change started: the window is the number of errors since
+     * then, and the mean only keeps those errors. The drift allowance is
+     * higher than CusumDM's (0.005), so that the sum restarts often enough
+     * before a change to place its start.
+     */
+    static class WindowedCusum extends ErrorChangeDetector {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int MIN_INSTANCES = 30;
+        private static final double DRIFT = 0.015;     // allowed rise over the mean
+        private static final double THRESHOLD = 30;    // change above this sum, warning above half of it
+
+        private final byte[] window;    // ring buffer of the latest errors
+        private int size = 0;
+        private int next = 0;
+        private int numErrors = 0;      // in the window
+
+        private double sum = 0;
+        private int sinceChange = 0;        // errors since the last detected change
+        private int sinceRestart = 0;       // errors since the sum was last 0
+        private int sinceChangePoint = 0;   // errors since the estimated start of the current concept
+        private int[] lastWarnings = new int[0];
+        private boolean[] lastRaised = new boolean[0];
+
+        WindowedCusum(int window) {
+            this.window = new byte[Math.max(window, 1)];
+        }
+
+        @Override
+        public int[] input(double[] errors) {
+            int[] changes = new int[errors.length];
+            int[] warnings = new int[errors.length];
+            int numChanges = 0;
+            int numWarnings = 0;
+
+            for (int i = 0; i < errors.length; i++) {
+                byte error = (byte) (errors[i] > 0 ? 1 : 0);
+                if (this.size == this.window.length) {
+                    this.numErrors -= this.window[this.next];
+                } else {
+                    this.size++;
+                }
+                this.window[this.next] = error;
+                this.numErrors += error;
+                this.next = (this.next + 1) % this.window.length;
+
+                this.sinceChange++;
+                this.sinceChangePoint++;
+                this.sum = Math.max(0, this.sum + error - getEstimation() - DRIFT);
+                this.sinceRestart = (this.sum == 0) ? 0 : this.sinceRestart + 1;
+
+                if (this.sinceChange >= MIN_INSTANCES && this.sum > THRESHOLD) {
+                    changes[numChanges++] = i;
+                    this.sinceChangePoint = this.sinceRestart;
+                    keepLatest(this.sinceRestart);
+                    this.sum = 0;
+                    this.sinceChange = 0;
+                    this.sinceRestart = 0;
+                } else if (this.sum > THRESHOLD / 2) {
+                    warnings[numWarnings++] = i;
+                }
+            }
+
+            this.lastWarnings = Arrays.copyOf(warnings, numWarnings);
+            this.lastRaised = new boolean[numChanges];
+            Arrays.fill(this.lastRaised, true);
+            return Arrays.copyOf(changes, numChanges);
+        }
+
+        /**
+         * Drops all but the latest n errors from the window.
+         */
+        private void keepLatest(int n) {
+            while (this.size > n) {
+                int oldest = (this.next - this.size + this.window.length) % this.window.length;
+                this.numErrors -= this.window[oldest];
+                this.size--;
+            }
+        }
+
+        @Override
+        public boolean[] getEstimationRaised() {
+            return this.lastRaised;
+        }
+
+        @Override
+        public int[] getWarnings() {
+            return this.lastWarnings;
+        }
+
+        @Override
+        public int getWindowLength() {
+            return this.sinceChangePoint;
+        }
+
+        @Override
+        public double getEstimation() {
+            return (this.size == 0) ? 0 : (double) this.numErrors / this.size;
+        }
+    }
+}
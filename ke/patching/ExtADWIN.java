@@ -1,5 +1,6 @@
 package moa.tud.ke.patching;
 
+import java.util.Arrays;
 import moa.AbstractMOAObject;
 
 public class ExtADWIN extends AbstractMOAObject{
@@ -22,258 +23,16 @@ public class ExtADWIN extends AbstractMOAObject{
  *    along with this program. If not, see <http://www.gnu.org/licenses/>.
  *
  *    Added a new constructor to set the "time" and the "delta"
+ *
+ *    The rows of buckets are kept in primitive arrays instead of a linked
+ *    list of objects: row i holds up to MAXBUCKETS + 1 buckets of size 2^i
+ *    in a ring (the oldest bucket at rowStart[i]), so removing the oldest
+ *    buckets of a row does not move the others.
  */
 
-    private class List extends AbstractMOAObject {
-
-        protected int count;
-
-        protected ListItem head;
-
-        protected ListItem tail;
-
-        public List() {
-//			post: initializes the list to be empty.
-            clear();
-            addToHead();
-        }
-
-        /* Interface Store Methods */
-        public int size() {
-            //	post: returns the number of elements in the list.
-            return this.count;
-        }
-
-        public ListItem head() {
-            //	post: returns the number of elements in the list.
-            return this.head;
-        }
-
-        public ListItem tail() {
-            //	post: returns the number of elements in the list.
-            return this.tail;
-        }
-
-        public boolean isEmpty() {
-            //	 post: returns the true iff store is empty.
-            return (this.size() == 0);
-        }
-
-        public void clear() {
-            //	 post: clears the list so that it contains no elements.
-            this.head = null;
-            this.tail = null;
-            this.count = 0;
-        }
-
-        /* Interface List Methods */
-        public void addToHead() {
-            //	 pre: anObject is non-null
-            //	 post: the object is added to the beginning of the list
-            this.head = new ListItem(this.head, null);
-            if (this.tail == null) {
-                this.tail = this.head;
-            }
-            this.count++;
-        }
-
-        public void removeFromHead() {
-            //		 pre: list is not empty
-            //		 post: removes and returns first object from the list
-//			ListItem temp;
-//			temp = this.head;
-            this.head = this.head.next();
-            if (this.head != null) {
-                this.head.setPrevious(null);
-            } else {
-                this.tail = null;
-            }
-            this.count--;
-            //temp=null;
-            return;
-        }
-
-        public void addToTail() {
-//			pre: anObject is non-null
-//			post: the object is added at the end of the list
-            this.tail = new ListItem(null, this.tail);
-            if (this.head == null) {
-                this.head = this.tail;
-            }
-            this.count++;
-        }
-
-        public void removeFromTail() {
-//			pre: list is not empty
-//			post: the last object in the list is removed and returned
-//			ListItem temp;
-//			temp = this.tail;
-            this.tail = this.tail.previous();
-            if (this.tail == null) {
-                this.head = null;
-            } else {
-                this.tail.setNext(null);
-            }
-            this.count--;
-            //temp=null;
-            return;
-        }
-
-        @Override
-        public void getDescription(StringBuilder sb, int indent) {
-        }
-    }
-
-    private class ListItem extends AbstractMOAObject {
-//		protected Object data;
-
-        protected ListItem next;
-
-        protected ListItem previous;
-
-        protected int bucketSizeRow = 0;
-
-        protected int MAXBUCKETS = ExtADWIN.MAXBUCKETS;
-
-        protected double bucketTotal[] = new double[MAXBUCKETS + 1];
-
-        protected double bucketVariance[] = new double[MAXBUCKETS + 1];
-
-        public ListItem() {
-//			post: initializes the node to be a tail node
-//			containing the given value.
-            this(null, null);
-        }
-
-        public void clear() {
-            bucketSizeRow = 0;
-            for (int k = 0; k <= MAXBUCKETS; k++) {
-                clearBucket(k);
-            }
-        }
-
-        private void clearBucket(int k) {
-            setTotal(0, k);
-            setVariance(0, k);
-        }
-
-        public ListItem(ListItem nextNode, ListItem previousNode) {
-//			post: initializes the node to contain the given
-//			object and link to the given next node.
-            //this.data = element;
-            this.next = nextNode;
-            this.previous = previousNode;
-            if (nextNode != null) {
-                nextNode.previous = this;
-            }
-            if (previousNode != null) {
-                previousNode.next = this;
-            }
-            clear();
-        }
-
-        public void insertBucket(double Value, double Variance) {
-//			insert a Bucket at the end
-            int k = bucketSizeRow;
-            bucketSizeRow++;
-            //Insert new bucket
-            setTotal(Value, k);
-            setVariance(Variance, k);
-        }
-
-        public void RemoveBucket() {
-//			Removes the first Buvket
-            compressBucketsRow(1);
-        }
-
-        public void compressBucketsRow(int NumberItemsDeleted) {
-            //Delete first elements
-            for (int k = NumberItemsDeleted; k <= MAXBUCKETS; k++) {
-                bucketTotal[k - NumberItemsDeleted] = bucketTotal[k];
-                bucketVariance[k - NumberItemsDeleted] = bucketVariance[k];
-            }
-            for (int k = 1; k <= NumberItemsDeleted; k++) {
-                clearBucket(MAXBUCKETS - k + 1);
-            }
-            bucketSizeRow -= NumberItemsDeleted;
-            //BucketNumber-=NumberItemsDeleted;
-        }
-
-        public ListItem previous() {
-//			post: returns the previous node.
-            return this.previous;
-        }
-
-        public void setPrevious(ListItem previous) {
-//			post: sets the previous node to be the given node
-            this.previous = previous;
-        }
-
-        public ListItem next() {
-//			post: returns the next node.
-            return this.next;
-        }
-
-        public void setNext(ListItem next) {
-//			post: sets the next node to be the given node
-            this.next = next;
-        }
-
-        public double Total(int k) {
-//			post: returns the element in this node
-            return bucketTotal[k];
-        }
-
-        public double Variance(int k) {
-//			post: returns the element in this node
-            return bucketVariance[k];
-        }
-
-        public void setTotal(double value, int k) {
-//			post: sets the element in this node to the given
-//			object.
-            bucketTotal[k] = value;
-        }
-
-        public void setVariance(double value, int k) {
-//			post: sets the element in this node to the given
-//			object.
-            bucketVariance[k] = value;
-        }
-    /*
-    public ListItem(Object element,
-    ListItem nextNode){
-    //		post: initializes the node to contain the given
-    //		 object and link to the given next node.
-    this.data = element;
-    this.next = nextNode;
-    }
-    public ListItem(Object element) {
-    //		post: initializes the node to be a tail node
-    //		 containing the given value.
-    this(element, null);
-    }
-
-
-    public Object value() {
-    //			 post: returns the element in this node
-    return this.data;
-    }
-    public void setValue(Object anObject) {
-    //			 post: sets the element in this node to the given
-    //			 object.
-    this.data = anObject;
-    }
-     */
-
-        @Override
-        public void getDescription(StringBuilder sb, int indent) {
-        }
-    }
-
     public static final double DELTA = .002; //.1;
 
-    private static final int mintMinimLongitudWindow = 10; //10
+    protected static final int mintMinimLongitudWindow = 10; //10
 
     private double mdbldelta = .002; //.1;
 
@@ -306,9 +65,23 @@ public class ExtADWIN extends AbstractMOAObject{
 
     private int BucketNumberMAX = 0;
 
-    private int mintMinWinLength = 5;
+    protected int mintMinWinLength = 5;
+
+    private static final int ROWCAPACITY = MAXBUCKETS + 1;
+
+    private double[] bucketTotal;       // bucket k of row i at i * ROWCAPACITY + (rowStart[i] + k) % ROWCAPACITY
+
+    private double[] bucketVariance;
+
+    private int[] rowStart;
+
+    private int[] rowCount;
 
-    private List listRowBuckets;
+    private boolean[] lastBatchRaised = new boolean[0];
+
+    private int[] lastBatchFineChanges = new int[0];
+
+    private double[] fineDd = new double[0];    // log term per fine delta, see setInput
 
     public boolean getChange() {
         return blnBucketDeleted;
@@ -334,6 +107,10 @@ public class ExtADWIN extends AbstractMOAObject{
         return mintClock;
     }
 
+    public double getDelta() {
+        return mdbldelta;
+    }
+
     public boolean getWarning() {
         return false;
     }
@@ -362,9 +139,12 @@ public class ExtADWIN extends AbstractMOAObject{
         return mdblWidth;
     }
 
-    private void initBuckets() {
-        //Init buckets
-        listRowBuckets = new List();
+    protected void initBuckets() {
+        //Init buckets, one empty row
+        bucketTotal = new double[8 * ROWCAPACITY];
+        bucketVariance = new double[8 * ROWCAPACITY];
+        rowStart = new int[8];
+        rowCount = new int[8];
         lastBucketRow = 0;
         TOTAL = 0;
         VARIANCE = 0;
@@ -374,7 +154,7 @@ public class ExtADWIN extends AbstractMOAObject{
 
     private void insertElement(double Value) {
         WIDTH++;
-        insertElementBucket(0, Value, listRowBuckets.head());
+        insertElementBucket(0, Value, 0);
         double incVariance = 0;
         if (WIDTH > 1) {
             incVariance = (WIDTH - 1) * (Value - TOTAL / (WIDTH - 1)) * (Value - TOTAL / (WIDTH - 1)) / WIDTH;
@@ -384,78 +164,108 @@ public class ExtADWIN extends AbstractMOAObject{
         compressBuckets();
     }
 
-    private void insertElementBucket(double Variance, double Value, ListItem Node) {
+    private void insertElementBucket(double Variance, double Value, int Row) {
         //Insert new bucket
-        Node.insertBucket(Value, Variance);
+        insertBucket(Row, Value, Variance);
         BucketNumber++;
         if (BucketNumber > BucketNumberMAX) {
             BucketNumberMAX = BucketNumber;
         }
     }
 
-    private int bucketSize(int Row) {
-        return (int) Math.pow(2, Row);
+    private static int bucketSize(int Row) {
+        return 1 << Row;
+    }
+
+    /**
+     * Position of bucket k (0 = the oldest) of a row in the bucket arrays
+     */
+    private int slot(int Row, int k) {
+        int pos = rowStart[Row] + k;
+        if (pos >= ROWCAPACITY) {
+            pos -= ROWCAPACITY;
+        }
+        return Row * ROWCAPACITY + pos;
+    }
+
+    private void insertBucket(int Row, double Value, double Variance) {
+        //insert a Bucket at the end of the row
+        int s = slot(Row, rowCount[Row]);
+        bucketTotal[s] = Value;
+        bucketVariance[s] = Variance;
+        rowCount[Row]++;
+    }
+
+    private void removeBuckets(int Row, int NumberItemsDeleted) {
+        //Delete the first (oldest) buckets of the row
+        rowStart[Row] = (rowStart[Row] + NumberItemsDeleted) % ROWCAPACITY;
+        rowCount[Row] -= NumberItemsDeleted;
+    }
+
+    private void addRow() {
+        lastBucketRow++;
+        if (lastBucketRow == rowCount.length) {
+            int rows = 2 * rowCount.length;
+            bucketTotal = Arrays.copyOf(bucketTotal, rows * ROWCAPACITY);
+            bucketVariance = Arrays.copyOf(bucketVariance, rows * ROWCAPACITY);
+            rowStart = Arrays.copyOf(rowStart, rows);
+            rowCount = Arrays.copyOf(rowCount, rows);
+        }
+        rowStart[lastBucketRow] = 0;
+        rowCount[lastBucketRow] = 0;
     }
 
     public int deleteElement() {
-        //LIST
         //Update statistics
-        ListItem Node;
-        Node = listRowBuckets.tail();
+        int oldest = slot(lastBucketRow, 0);
         int n1 = bucketSize(lastBucketRow);
         WIDTH -= n1;
-        TOTAL -= Node.Total(0);
-        double u1 = Node.Total(0) / n1;
-        double incVariance = Node.Variance(0) + n1 * WIDTH * (u1 - TOTAL / WIDTH) * (u1 - TOTAL / WIDTH) / (n1 + WIDTH);
+        TOTAL -= bucketTotal[oldest];
+        double u1 = bucketTotal[oldest] / n1;
+        double incVariance = bucketVariance[oldest] + n1 * WIDTH * (u1 - TOTAL / WIDTH) * (u1 - TOTAL / WIDTH) / (n1 + WIDTH);
         VARIANCE -= incVariance;
 
         //Delete Bucket
-        Node.RemoveBucket();
+        removeBuckets(lastBucketRow, 1);
         BucketNumber--;
-        if (Node.bucketSizeRow == 0) {
-            listRowBuckets.removeFromTail();
+        if (rowCount[lastBucketRow] == 0) {
             lastBucketRow--;
         }
         return n1;
     }
 
     public void compressBuckets() {
-        //Traverse the list of buckets in increasing order
+        //Traverse the rows of buckets in increasing order
         int n1, n2;
         double u2, u1, incVariance;
-        ListItem cursor;
-        ListItem nextNode;
-        cursor = listRowBuckets.head();
         int i = 0;
         do {
             //Find the number of buckets in a row
-            int k = cursor.bucketSizeRow;
+            int k = rowCount[i];
             //If the row is full, merge buckets
             if (k == MAXBUCKETS + 1) {
-                nextNode = cursor.next();
-                if (nextNode == null) {
-                    listRowBuckets.addToTail();
-                    nextNode = cursor.next();
-                    lastBucketRow++;
+                if (i == lastBucketRow) {
+                    addRow();
                 }
+                int first = slot(i, 0);
+                int second = slot(i, 1);
                 n1 = bucketSize(i);
                 n2 = bucketSize(i);
-                u1 = cursor.Total(0) / n1;
-                u2 = cursor.Total(1) / n2;
+                u1 = bucketTotal[first] / n1;
+                u2 = bucketTotal[second] / n2;
                 incVariance = n1 * n2 * (u1 - u2) * (u1 - u2) / (n1 + n2);
 
-                nextNode.insertBucket(cursor.Total(0) + cursor.Total(1), cursor.Variance(0) + cursor.Variance(1) + incVariance);
+                insertBucket(i + 1, bucketTotal[first] + bucketTotal[second], bucketVariance[first] + bucketVariance[second] + incVariance);
                 BucketNumber++;
-                cursor.compressBucketsRow(2);
-                if (nextNode.bucketSizeRow <= MAXBUCKETS) {
+                removeBuckets(i, 2);
+                if (rowCount[i + 1] <= MAXBUCKETS) {
                     break;
                 }
             } else {
                 break;
             }
-            cursor = cursor.next();
             i++;
-        } while (cursor != null);
+        } while (i <= lastBucketRow);
     }
 
     public boolean setInput(double intEntrada, boolean deleteElements) {
@@ -463,9 +273,39 @@ public class ExtADWIN extends AbstractMOAObject{
     }
 
     public boolean setInput(double intEntrada, double delta, boolean deleteElements) {
+        return setInput(intEntrada, delta, deleteElements, null, null);
+    }
+
+    /**
+     * Like setInput(intEntrada, delta, deleteElements), and in the same
+     * traversal of the buckets the window is also checked for each of the
+     * fineDeltas, without removing anything. fired[j] tells whether a cut
+     * was found for fineDeltas[j], the same as a following call of
+     * setInput(-1, fineDeltas[j], false) would return.
+     *
+     * Only the last pass over the buckets counts for the fine deltas: it is
+     * the one on the final window, in which no cut for delta is found. If
+     * that pass stopped at a cut for delta (only without input), the fine
+     * deltas are checked in passes of their own.
+     *
+     * @param intEntrada the value, -1 for none
+     * @param delta
+     * @param deleteElements
+     * @param fineDeltas the additional confidence levels, or null
+     * @param fired receives per fine delta whether it found a cut, or null
+     * @return whether a cut for delta was found
+     */
+    public boolean setInput(double intEntrada, double delta, boolean deleteElements, double[] fineDeltas, boolean[] fired) {
         boolean blnChange = false;
         boolean blnExit = false;
-        ListItem cursor;
+        boolean blnScannedAll = true;
+        int numFine = (fineDeltas == null) ? 0 : fineDeltas.length;
+        if (numFine > 0) {
+            Arrays.fill(fired, 0, numFine, false);
+            if (fineDd.length < numFine) {
+                fineDd = new double[numFine];
+            }
+        }
         //mintTime++;
 
         //1,2)Increment window in one element
@@ -492,32 +332,48 @@ public class ExtADWIN extends AbstractMOAObject{
                 double n2 = 0;
                 double u2 = 0;
 
-                cursor = listRowBuckets.tail();
+                // the same for every candidate cut until the window is reduced
+                double dd = Math.log(2 * Math.log(WIDTH) / delta);
+                double v = getVariance();
+                for (int j = 0; j < numFine; j++) {
+                    fineDd[j] = Math.log(2 * Math.log(WIDTH) / fineDeltas[j]);
+                    fired[j] = false;
+                }
+                blnScannedAll = true;
+
                 int i = lastBucketRow;
                 do {
-                    for (int k = 0; k <= (cursor.bucketSizeRow - 1); k++) {
-                        n2 = bucketSize(i);
-                        u2 = cursor.Total(k);
+                    int size = bucketSize(i);
+                    for (int k = 0; k <= (rowCount[i] - 1); k++) {
+                        int s = slot(i, k);
+                        n2 = size;
+                        u2 = bucketTotal[s];
                         if (n0 > 0) {
-                            v0 += cursor.Variance(k) + (double) n0 * n2 * (u0 / n0 - u2 / n2) * (u0 / n0 - u2 / n2) / (n0 + n2);
+                            v0 += bucketVariance[s] + (double) n0 * n2 * (u0 / n0 - u2 / n2) * (u0 / n0 - u2 / n2) / (n0 + n2);
                         }
                         if (n1 > 0) {
-                            v1 -= cursor.Variance(k) + (double) n1 * n2 * (u1 / n1 - u2 / n2) * (u1 / n1 - u2 / n2) / (n1 + n2);
+                            v1 -= bucketVariance[s] + (double) n1 * n2 * (u1 / n1 - u2 / n2) * (u1 / n1 - u2 / n2) / (n1 + n2);
                         }
 
-                        n0 += bucketSize(i);
-                        n1 -= bucketSize(i);
-                        u0 += cursor.Total(k);
-                        u1 -= cursor.Total(k);
+                        n0 += size;
+                        n1 -= size;
+                        u0 += bucketTotal[s];
+                        u1 -= bucketTotal[s];
 
-                        if (i == 0 && k == cursor.bucketSizeRow - 1) {
+                        if (i == 0 && k == rowCount[i] - 1) {
                             blnExit = true;
                             break;
                         }
                         double absvalue = (double) (u0 / n0) - (u1 / n1);       //n1<WIDTH-mintMinWinLength-1
-                        if ((n1 > mintMinWinLength + 1 && n0 > mintMinWinLength + 1) && // Diference NEGATIVE
-                                //if(
-                                blnCutexpression(n0, n1, u0, u1, v0, v1, absvalue, delta)) {
+                        boolean blnLongEnough = (n1 > mintMinWinLength + 1 && n0 > mintMinWinLength + 1); // Diference NEGATIVE
+                        if (blnLongEnough) {
+                            for (int j = 0; j < numFine; j++) {
+                                if (!fired[j] && blnCutexpression(n0, n1, v, fineDd[j], absvalue)) {
+                                    fired[j] = true;
+                                }
+                            }
+                        }
+                        if (blnLongEnough && blnCutexpression(n0, n1, v, dd, absvalue)) {
                             if(intEntrada != -1) {
                                 blnBucketDeleted = true;
                                 Detect = mintTime;
@@ -541,16 +397,22 @@ public class ExtADWIN extends AbstractMOAObject{
                                     n0 -= deleteElement();
                                 }
                                 blnExit = true;
+                                blnScannedAll = false;
                                 break;
                             }
                         } //End if
                     }//Next k
-                    cursor = cursor.previous();
                     i--;
-                } while (((!blnExit && cursor != null)));
+                } while (((!blnExit && i >= 0)));
             }//End While // Diference
         }//End if
 
+        if (!blnScannedAll) {
+            for (int j = 0; j < numFine; j++) {
+                fired[j] = setInput(-1, fineDeltas[j], false);
+            }
+        }
+
         if(intEntrada != -1) {
             mdblWidth += getWidth();
             if (blnChange) {
@@ -560,11 +422,81 @@ public class ExtADWIN extends AbstractMOAObject{
         return blnChange;
     }
 
-    private boolean blnCutexpression(int n0, int n1, double u0, double u1, double v0, double v1, double absvalue, double delta) {
-        int n = getWidth();
-        double dd = Math.log(2 * Math.log(n) / delta);     // -- ull perque el ln n va al numerador.
+    /**
+     * Feeds a whole batch of values, with the same result as calling
+     * setInput(value, deleteElements) for each of them in turn.
+     *
+     * @param values
+     * @param deleteElements
+     * @return the positions in values at which a change was detected
+     */
+    public int[] setInput(double[] values, boolean deleteElements) {
+        return setInput(values, deleteElements, 0);
+    }
+
+    /**
+     * Feeds a whole batch of values. After each value, if fineDelta > 0, the
+     * window is checked once more with fineDelta and without removing
+     * anything, as by setInput(-1, fineDelta, false), in the same traversal. The positions of those
+     * changes are returned by getFineChanges(), whether the estimation went
+     * up with each returned change by getEstimationRaised().
+     *
+     * @param values
+     * @param deleteElements
+     * @param fineDelta the delta of the second check, 0 for none
+     * @return the positions in values at which a change was detected
+     */
+    public int[] setInput(double[] values, boolean deleteElements, double fineDelta) {
+        int[] changes = new int[values.length];
+        boolean[] raised = new boolean[values.length];
+        int[] fine = new int[values.length];
+        int numChanges = 0;
+        int numFine = 0;
+        double[] fineDeltas = (fineDelta > 0) ? new double[]{fineDelta} : null;
+        boolean[] fired = new boolean[1];
+
+        for (int i = 0; i < values.length; i++) {
+            double estimation = getEstimation();
+            if (setInput(values[i], mdbldelta, deleteElements, fineDeltas, fired)) {
+                raised[numChanges] = getEstimation() > estimation;
+                changes[numChanges++] = i;
+            }
+            if (fineDeltas != null && fired[0]) {
+                fine[numFine++] = i;
+            }
+        }
+
+        lastBatchRaised = Arrays.copyOf(raised, numChanges);
+        lastBatchFineChanges = Arrays.copyOf(fine, numFine);
+        return Arrays.copyOf(changes, numChanges);
+    }
+
+    /**
+     * For each change of the last batch: whether the estimation was higher
+     * after it than before the value was added
+     *
+     * @return
+     */
+    public boolean[] getEstimationRaised() {
+        return lastBatchRaised;
+    }
+
+    /**
+     * The positions of the changes found by the fine check of the last batch
+     *
+     * @return
+     */
+    public int[] getFineChanges() {
+        return lastBatchFineChanges;
+    }
+
+    /**
+     * dd = log(2 * log(width) / delta) and v = the variance of the window,
+     * computed once per pass over the buckets
+     */
+    protected boolean blnCutexpression(int n0, int n1, double v, double dd, double absvalue) {
+        // -- ull perque el ln n va al numerador.
         // Formula Gener 2008
-        double v = getVariance();
         double m = ((double) 1 / ((n0 - mintMinWinLength + 1))) + ((double) 1 / ((n1 - mintMinWinLength + 1)));
         double epsilon = Math.sqrt(2 * m * v * dd) + (double) 2 / 3 * dd * m;
 
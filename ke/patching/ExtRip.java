@@ -10,6 +10,8 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import weka.classifiers.AbstractClassifier;
 import static weka.classifiers.AbstractClassifier.runClassifier;
@@ -257,6 +259,47 @@ public class ExtRip extends AbstractClassifier implements
      */
     private int lastUsedRule = -1;
 
+    /**
+     * The finished ruleset in flat form, used for scoring
+     */
+    private CompiledRuleset m_Compiled = null;
+
+    /**
+     * How instances are scored, see CompiledRuleset.BACKEND_*
+     */
+    private int m_ScoringBackend = CompiledRuleset.BACKEND_ARRAYS;
+
+    /**
+     * The decision of each rule
+     */
+    private Decision[] m_Decisions = null;
+
+    /**
+     * The training data presorted by every numeric attribute, only during
+     * buildClassifier
+     */
+    private transient PresortedIndex m_Presorted = null;
+
+    /**
+     * Whether the candidate antecedents of a rule are evaluated in parallel
+     */
+    private boolean m_ParallelGrow = false;
+
+    /**
+     * The minimal number of candidate attributes times growing instances for
+     * which the candidates are evaluated in parallel
+     */
+    private int m_ParallelThreshold = 100000;
+
+    /**
+     * The rules (without the default rule) of a previous build and the names
+     * of the classes they predict, to start the next build from. Only held
+     * until that build.
+     */
+    private transient ArrayList<Rule> m_WarmStartRules = null;
+    private transient ArrayList<String> m_WarmStartClasses = null;
+    private transient ArrayList<Double> m_WarmStartErrors = null;
+
     @Override
     public int getLastUsedDecider() {
         return lastUsedRule;
@@ -410,6 +453,17 @@ public class ExtRip extends AbstractClassifier implements
         newVector.add(new Option("\tWhether NOT use pruning\n"
                 + "\t(default: use pruning)", "P", 0, "-P"));
 
+        newVector.add(new Option("\tHow instances are scored: 0 = rule objects,\n"
+                + "\t1 = compiled flat arrays, 2 = compiled method handles\n"
+                + "\t(default: 1)", "C", 1, "-C <backend>"));
+
+        newVector.add(new Option("\tEvaluate the candidate antecedents of a rule\n"
+                + "\tin parallel (default: sequential)", "A", 0, "-A"));
+
+        newVector.add(new Option("\tThe minimal number of candidate attributes\n"
+                + "\ttimes growing instances for parallel evaluation\n"
+                + "\t(default: 100000)", "L", 1, "-L <cells>"));
+
         newVector.addAll(Collections.list(super.listOptions()));
 
         return newVector.elements();
@@ -466,6 +520,26 @@ public class ExtRip extends AbstractClassifier implements
      *  (default: use pruning)
      * </pre>
      *
+     * <pre>
+     * -C &lt;backend&gt;
+     *  How instances are scored: 0 = rule objects,
+     *  1 = compiled flat arrays, 2 = compiled method handles
+     *  (default: 1)
+     * </pre>
+     *
+     * <pre>
+     * -A
+     *  Evaluate the candidate antecedents of a rule
+     *  in parallel (default: sequential)
+     * </pre>
+     *
+     * <pre>
+     * -L &lt;cells&gt;
+     *  The minimal number of candidate attributes
+     *  times growing instances for parallel evaluation
+     *  (default: 100000)
+     * </pre>
+     *
      * <!-- options-end -->
      *
      * @param options the list of options as an array of strings
@@ -505,6 +579,22 @@ public class ExtRip extends AbstractClassifier implements
         m_CheckErr = !Utils.getFlag('E', options);
         m_UsePruning = !Utils.getFlag('P', options);
 
+        String backendString = Utils.getOption('C', options);
+        if (backendString.length() != 0) {
+            m_ScoringBackend = Integer.parseInt(backendString);
+        } else {
+            m_ScoringBackend = CompiledRuleset.BACKEND_ARRAYS;
+        }
+
+        m_ParallelGrow = Utils.getFlag('A', options);
+
+        String thresholdString = Utils.getOption('L', options);
+        if (thresholdString.length() != 0) {
+            m_ParallelThreshold = Integer.parseInt(thresholdString);
+        } else {
+            m_ParallelThreshold = 100000;
+        }
+
         super.setOptions(options);
 
         Utils.checkForRemainingOptions(options);
@@ -541,6 +631,15 @@ public class ExtRip extends AbstractClassifier implements
             options.add("-P");
         }
 
+        options.add("-C");
+        options.add("" + m_ScoringBackend);
+
+        if (m_ParallelGrow) {
+            options.add("-A");
+        }
+        options.add("-L");
+        options.add("" + m_ParallelThreshold);
+
         Collections.addAll(options, super.getOptions());
 
         return options.toArray(new String[0]);
@@ -720,6 +819,94 @@ public class ExtRip extends AbstractClassifier implements
         return m_Debug;
     }
 
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String scoringBackendTipText() {
+        return "How instances are scored: 0 = by the rule objects, "
+                + "1 = by the ruleset compiled into flat arrays, "
+                + "2 = by the ruleset compiled into a chain of method handles.";
+    }
+
+    /**
+     * Sets how instances are scored
+     *
+     * @param backend one of CompiledRuleset.BACKEND_*
+     */
+    public void setScoringBackend(int backend) {
+        m_ScoringBackend = backend;
+    }
+
+    /**
+     * Gets how instances are scored
+     *
+     * @return one of CompiledRuleset.BACKEND_*
+     */
+    public int getScoringBackend() {
+        return m_ScoringBackend;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String parallelGrowTipText() {
+        return "Whether the candidate antecedents of a rule are evaluated in parallel "
+                + "(the rules are the same as in a sequential run).";
+    }
+
+    /**
+     * Sets whether the candidate antecedents are evaluated in parallel
+     *
+     * @param p
+     */
+    public void setParallelGrow(boolean p) {
+        m_ParallelGrow = p;
+    }
+
+    /**
+     * Gets whether the candidate antecedents are evaluated in parallel
+     *
+     * @return
+     */
+    public boolean getParallelGrow() {
+        return m_ParallelGrow;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String parallelThresholdTipText() {
+        return "The minimal number of candidate attributes times growing instances "
+                + "for which the candidates are evaluated in parallel.";
+    }
+
+    /**
+     * Sets the minimal problem size for parallel evaluation
+     *
+     * @param cells attributes times instances
+     */
+    public void setParallelThreshold(int cells) {
+        m_ParallelThreshold = cells;
+    }
+
+    /**
+     * Gets the minimal problem size for parallel evaluation
+     *
+     * @return attributes times instances
+     */
+    public int getParallelThreshold() {
+        return m_ParallelThreshold;
+    }
+
     /**
      * Returns the tip text for this property
      *
@@ -786,6 +973,82 @@ public class ExtRip extends AbstractClassifier implements
         return m_Ruleset;
     }
 
+    /**
+     * Makes the next buildClassifier start from the rules of a previously
+     * built ExtRip on data of the same format. Per class, the old rules are
+     * checked first on the new data, in their order. The rules that still pay
+     * for themselves (lower the description length of the ruleset and pass
+     * the stopping criteria of new rules) are kept, and only the positives
+     * they no longer cover get new rules, which are grown, pruned and
+     * optimized as usual. A kept rule is only optimized again if its error
+     * rate on the new data is clearly higher than on the data it was built
+     * on. So when the data changes little, hardly any rule is grown.
+     *
+     * @param previous the built ExtRip to start from, null to build from
+     * scratch
+     */
+    public void setWarmStart(ExtRip previous) {
+        m_WarmStartRules = null;
+        m_WarmStartClasses = null;
+        m_WarmStartErrors = null;
+        if (previous == null || previous.m_RulesetStats == null || previous.m_Class == null) {
+            return;
+        }
+        m_WarmStartRules = new ArrayList<Rule>();
+        m_WarmStartClasses = new ArrayList<String>();
+        m_WarmStartErrors = new ArrayList<Double>();
+        for (RuleStats stats : previous.m_RulesetStats) {
+            for (int i = 0; i < stats.getRulesetSize(); i++) {
+                Rule rule = stats.getRuleset().get(i);
+                if (rule.hasAntds()) {
+                    double[] rst = stats.getSimpleStats(i);
+                    m_WarmStartRules.add(rule);
+                    m_WarmStartClasses.add(previous.m_Class.value((int) rule.getConsequent()));
+                    m_WarmStartErrors.add(rst[4] / rst[0]);
+                }
+            }
+        }
+    }
+
+    /**
+     * The rules of the warm start that predict the given class, as rules of
+     * this classifier on the attributes of data.
+     *
+     * @param data the (class ordered) training data
+     * @param classIndex the class in data
+     * @return
+     */
+    private ArrayList<RipperRule> warmStartRules(Instances data, double classIndex) {
+        ArrayList<RipperRule> rules = new ArrayList<RipperRule>();
+        if (m_WarmStartRules == null) {
+            return rules;
+        }
+        String className = data.classAttribute().value((int) classIndex);
+        for (int i = 0; i < m_WarmStartRules.size(); i++) {
+            if (!className.equals(m_WarmStartClasses.get(i))) {
+                continue;
+            }
+            RipperRule rule = new RipperRule();
+            rule.setConsequent(classIndex);
+            rule.m_PreviousErrorRate = m_WarmStartErrors.get(i);
+            for (Antd old : ((RipperRule) m_WarmStartRules.get(i)).getAntds()) {
+                Attribute att = data.attribute(old.getAttr().index());
+                Antd antd;
+                if (old instanceof NumericAntd) {
+                    NumericAntd na = new NumericAntd(att);
+                    na.splitPoint = ((NumericAntd) old).getSplitPoint();
+                    antd = na;
+                } else {
+                    antd = new NominalAntd(att);
+                }
+                antd.value = old.getAttrValue();
+                rule.m_Antds.add(antd);
+            }
+            rules.add(rule);
+        }
+        return rules;
+    }
+
     /**
      * Get the statistics of the ruleset in the given position
      *
@@ -863,6 +1126,15 @@ public class ExtRip extends AbstractClassifier implements
         @Override
         public abstract String toString();
 
+        /**
+         * Describes the test exactly (attribute index, operator and value), so
+         * that two antecedents with the same signature cover the same
+         * instances.
+         *
+         * @return
+         */
+        public abstract String getSignature();
+
         /**
          * Implements Copyable
          *
@@ -922,6 +1194,13 @@ public class ExtRip extends AbstractClassifier implements
          */
         private double splitPoint;
 
+        /**
+         * The position of the split found by findSplit(rows, ...) in the
+         * sorted rows. The rows themselves are not kept, every candidate
+         * would hold all of them until one is chosen.
+         */
+        private transient int finalSplit;
+
         /**
          * Constructor
          */
@@ -965,7 +1244,83 @@ public class ExtRip extends AbstractClassifier implements
         @Override
         public Instances[] splitData(Instances insts, double defAcRt, double cl) {
             Instances data = insts;
-            int total = data.numInstances();// Total number of instances without
+            int total = 0;// Total number of instances without
+            // missing value for att
+
+            // Sorted like Instances.sort(att), but without touching data: the
+            // bags are read-only views
+            double[] values = new double[data.numInstances()];
+            for (int x = 0; x < values.length; x++) {
+                if (data.instance(x).isMissing(att)) {
+                    values[x] = Double.MAX_VALUE;   // missing values last
+                } else {
+                    values[x] = data.instance(x).value(att);
+                    total++;
+                }
+            }
+            int[] order = Utils.sortWithNoMissingValues(values);
+
+            Instance[] sorted = new Instance[total];
+            for (int x = 0; x < total; x++) {
+                sorted[x] = data.instance(order[x]);
+            }
+            return splitSorted(data, sorted, defAcRt, cl);
+        }
+
+        /**
+         * Like splitData(insts, defAcRt, cl), but the data is not sorted again
+         * (the instances are taken in the order of the presorted training
+         * data) and the bags are not created yet. Only the bag of the
+         * antecedent that is finally chosen is needed, see coveredData.
+         *
+         * @param rows the rows of the data in the presorted training data
+         * @param defAcRt the default accuracy rate for data
+         * @param cl the class label to be predicted
+         * @return false if the data is all missing for the attribute
+         */
+        public boolean findSplit(PresortedIndex.Subset rows, double defAcRt, double cl) {
+            Instance[] sorted = rows.sorted(att.index());
+            int split = findSplit(sorted, defAcRt, cl);
+            if (split < 0) {
+                return false;
+            }
+            this.finalSplit = split;
+            return true;
+        }
+
+        /**
+         * Returns the bag of the split found by findSplit(rows, ...) that is
+         * covered by this antecedent. The rows are sorted again, so this is
+         * only done for the antecedent that is chosen.
+         *
+         * @param data the data that was split
+         * @param rows the same rows that were given to findSplit
+         * @return
+         */
+        public Instances coveredData(Instances data, PresortedIndex.Subset rows) {
+            Instances[] bags = bags(data, rows.sorted(att.index()), this.finalSplit);
+            return bags[(int) value];
+        }
+
+        private Instances[] splitSorted(Instances data, Instance[] sorted, double defAcRt, double cl) {
+            int split = findSplit(sorted, defAcRt, cl);
+            if (split < 0) {
+                return null;
+            }
+            return bags(data, sorted, split);
+        }
+
+        /**
+         * Finds the split with the maximum infoGain.
+         *
+         * @param sorted the instances without missing value for att, sorted by
+         * att
+         * @param defAcRt the default accuracy rate for data
+         * @param cl the class label to be predicted
+         * @return the final split position, -1 if there is no instance
+         */
+        private int findSplit(Instance[] sorted, double defAcRt, double cl) {
+            int total = sorted.length; // Total number of instances without
             // missing value for att
 
             int split = 1; // Current split position
@@ -976,15 +1331,8 @@ public class ExtRip extends AbstractClassifier implements
 
             double fstCover = 0, sndCover = 0, fstAccu = 0, sndAccu = 0;
 
-            data.sort(att);
-            // Find the las instance without missing value
-            for (int x = 0; x < data.numInstances(); x++) {
-                Instance inst = data.instance(x);
-                if (inst.isMissing(att)) {
-                    total = x;
-                    break;
-                }
-
+            for (int x = 0; x < total; x++) {
+                Instance inst = sorted[x];
                 sndCover += inst.weight();
                 if (Utils.eq(inst.classValue(), cl)) {
                     sndAccu += inst.weight();
@@ -992,20 +1340,20 @@ public class ExtRip extends AbstractClassifier implements
             }
 
             if (total == 0) {
-                return null; // Data all missing for the attribute
+                return -1; // Data all missing for the attribute
             }
-            splitPoint = data.instance(total - 1).value(att);
+            splitPoint = sorted[total - 1].value(att);
 
             for (; split <= total; split++) {
-                if ((split == total) || (data.instance(split).value(att) > // Can't
+                if ((split == total) || (sorted[split].value(att) > // Can't
                         // split
                         // within
-                        data.instance(prev).value(att))) { // same value
+                        sorted[prev].value(att))) { // same value
 
                     for (int y = prev; y < split; y++) {
-                        Instance inst = data.instance(y);
+                        Instance inst = sorted[y];
                         fstCover += inst.weight();
-                        if (Utils.eq(data.instance(y).classValue(), cl)) {
+                        if (Utils.eq(sorted[y].classValue(), cl)) {
                             fstAccu += inst.weight(); // First bag positive# ++
                         }
                     }
@@ -1044,7 +1392,7 @@ public class ExtRip extends AbstractClassifier implements
 
                     /* Check whether so far the max infoGain */
                     if (infoGain > maxInfoGain) {
-                        splitPoint = data.instance(prev).value(att);
+                        splitPoint = sorted[prev].value(att);
                         value = (isFirst) ? 0 : 1;
                         accuRate = accRate;
                         accu = accurate;
@@ -1054,9 +1402,9 @@ public class ExtRip extends AbstractClassifier implements
                     }
 
                     for (int y = prev; y < split; y++) {
-                        Instance inst = data.instance(y);
+                        Instance inst = sorted[y];
                         sndCover -= inst.weight();
-                        if (Utils.eq(data.instance(y).classValue(), cl)) {
+                        if (Utils.eq(sorted[y].classValue(), cl)) {
                             sndAccu -= inst.weight(); // Second bag positive# --
                         }
                     }
@@ -1064,10 +1412,23 @@ public class ExtRip extends AbstractClassifier implements
                 }
             }
 
-            /* Split the data */
-            Instances[] splitData = new Instances[2];
-            splitData[0] = new Instances(data, 0, finalSplit);
-            splitData[1] = new Instances(data, finalSplit, total - finalSplit);
+            return finalSplit;
+        }
+
+        /**
+         * Splits the sorted instances at the given position.
+         */
+        private Instances[] bags(Instances data, Instance[] sorted, int finalSplit) {
+            int total = sorted.length;
+            InstanceStore.ReadOnlyInstances[] splitData = new InstanceStore.ReadOnlyInstances[2];
+            splitData[0] = new InstanceStore.ReadOnlyInstances(data, finalSplit);
+            for (int x = 0; x < finalSplit; x++) {
+                splitData[0].append(sorted[x]);
+            }
+            splitData[1] = new InstanceStore.ReadOnlyInstances(data, total - finalSplit);
+            for (int x = finalSplit; x < total; x++) {
+                splitData[1].append(sorted[x]);
+            }
 
             return splitData;
         }
@@ -1108,6 +1469,12 @@ public class ExtRip extends AbstractClassifier implements
             return (att.name() + symbol + Utils.doubleToString(splitPoint, 6));
         }
 
+        @Override
+        public String getSignature() {
+            String symbol = ((int) value == 0) ? "<=" : ">=";
+            return (att.index() + symbol + splitPoint);
+        }
+
         /**
          * Returns the revision string.
          *
@@ -1171,10 +1538,26 @@ public class ExtRip extends AbstractClassifier implements
         @Override
         public Instances[] splitData(Instances data, double defAcRt, double cl) {
             int bag = att.numValues();
+            findSplit(data, defAcRt, cl);
+
             Instances[] splitData = new Instances[bag];
+            for (int x = 0; x < bag; x++) {
+                splitData[x] = coveredData(data, x);
+            }
+            return splitData;
+        }
 
+        /**
+         * Like splitData, but only computes the infoGain of each bag. The bag
+         * of the chosen antecedent is created by coveredData.
+         *
+         * @param data the data to be split
+         * @param defAcRt the default accuracy rate for data
+         * @param cl the class label to be predicted
+         */
+        public void findSplit(Instances data, double defAcRt, double cl) {
+            int bag = att.numValues();
             for (int x = 0; x < bag; x++) {
-                splitData[x] = new Instances(data, data.numInstances());
                 accurate[x] = 0;
                 coverage[x] = 0;
             }
@@ -1183,7 +1566,6 @@ public class ExtRip extends AbstractClassifier implements
                 Instance inst = data.instance(x);
                 if (!inst.isMissing(att)) {
                     int v = (int) inst.value(att);
-                    splitData[v].add(inst);
                     coverage[v] += inst.weight();
                     if ((int) inst.classValue() == (int) cl) {
                         accurate[v] += inst.weight();
@@ -1207,8 +1589,25 @@ public class ExtRip extends AbstractClassifier implements
                     value = x;
                 }
             }
+        }
 
-            return splitData;
+        /**
+         * Returns the instances of data with the given value of the attribute,
+         * in the order of data. The instances are not copied.
+         *
+         * @param data
+         * @param v
+         * @return
+         */
+        public Instances coveredData(Instances data, int v) {
+            InstanceStore.ReadOnlyInstances covered = new InstanceStore.ReadOnlyInstances(data, (int) coverage[v] + 1);
+            for (int x = 0; x < data.numInstances(); x++) {
+                Instance inst = data.instance(x);
+                if (!inst.isMissing(att) && (int) inst.value(att) == v) {
+                    covered.append(inst);
+                }
+            }
+            return covered;
         }
 
         /**
@@ -1239,6 +1638,11 @@ public class ExtRip extends AbstractClassifier implements
             return (att.name() + " = " + att.value((int) value));
         }
 
+        @Override
+        public String getSignature() {
+            return (att.index() + "=" + (int) value);
+        }
+
         /**
          * Returns the revision string.
          *
@@ -1276,6 +1680,12 @@ public class ExtRip extends AbstractClassifier implements
          */
         protected ArrayList<Antd> m_Antds = null;
 
+        /**
+         * The error rate on the data of the build it was taken over from, NaN
+         * for rules grown in this build
+         */
+        private transient double m_PreviousErrorRate = Double.NaN;
+
         /**
          * Constructor
          */
@@ -1365,6 +1775,22 @@ public class ExtRip extends AbstractClassifier implements
             return m_Antds;
         }
 
+        /**
+         * The signatures of the antecedents in a fixed order, so the same
+         * conjunction always gives the same string, whatever order the
+         * antecedents were grown in.
+         *
+         * @return
+         */
+        public String getSignature() {
+            ArrayList<String> antds = new ArrayList<String>(m_Antds.size());
+            for (Antd a : m_Antds) {
+                antds.add(a.getSignature());
+            }
+            Collections.sort(antds);
+            return String.join(" and ", antds);
+        }
+
         /**
          * the number of antecedents of the rule
          *
@@ -1446,45 +1872,58 @@ public class ExtRip extends AbstractClassifier implements
                 /* Build a list of antecedents */
                 Antd oneAntd = null;
                 Instances coverData = null;
-                Enumeration<Attribute> enumAttr = growData.enumerateAttributes();
 
-                /* Build one condition based on all attributes not used yet */
+                // The rows of the grow data in the presorted training data, if available
+                PresortedIndex.Subset rows = (m_Presorted != null) ? m_Presorted.subset(growData) : null;
+
+                /* One condition for every attribute not used yet, in the order of the attributes */
+                Antd[] candidates = new Antd[growData.numAttributes()];
+                int numCandidates = 0;
+                Enumeration<Attribute> enumAttr = growData.enumerateAttributes();
                 while (enumAttr.hasMoreElements()) {
                     Attribute att = (enumAttr.nextElement());
+                    if (!used[att.index()]) {
+                        candidates[numCandidates++] = att.isNumeric() ? new NumericAntd(att) : new NominalAntd(att);
+                    }
+                }
 
+                /*
+                 * Compute the best information gain for each attribute, it's stored
+                 * in the antecedent formed by this attribute. The candidates only
+                 * read the grow data (without the presorted rows, numeric ones sort
+                 * references to it), so they can be evaluated at the same time.
+                 */
+                Instances[] coveredData = new Instances[numCandidates];
+                if (m_ParallelGrow && numCandidates > 1
+                        && (long) numCandidates * growData.numInstances() >= m_ParallelThreshold) {
+                    ForkJoinPool.commonPool().invoke(new CandidateEvaluation(candidates, coveredData,
+                            0, numCandidates, growData, rows, defAcRt));
+                } else {
+                    for (int c = 0; c < numCandidates; c++) {
+                        coveredData[c] = evaluate(candidates[c], growData, rows, defAcRt);
+                    }
+                }
+
+                /* The first candidate with the highest information gain, as in a sequential run */
+                for (int c = 0; c < numCandidates; c++) {
+                    Antd antd = candidates[c];
                     if (m_Debug) {
                         System.err.println("\nOne condition: size = "
                                 + growData.sumOfWeights());
                     }
+                    if (coveredData[c] != null) {
+                        double infoGain = antd.getMaxInfoGain();
+                        if (m_Debug) {
+                            System.err.println("Test of \'" + antd.toString()
+                                    + "\': infoGain = " + infoGain + " | Accuracy = "
+                                    + antd.getAccuRate() + "=" + antd.getAccu() + "/"
+                                    + antd.getCover() + " def. accuracy: " + defAcRt);
+                        }
 
-                    Antd antd = null;
-                    if (att.isNumeric()) {
-                        antd = new NumericAntd(att);
-                    } else {
-                        antd = new NominalAntd(att);
-                    }
-
-                    if (!used[att.index()]) {
-                        /*
-                         * Compute the best information gain for each attribute, it's stored
-                         * in the antecedent formed by this attribute. This procedure
-                         * returns the data covered by the antecedent
-                         */
-                        Instances coveredData = computeInfoGain(growData, defAcRt, antd);
-                        if (coveredData != null) {
-                            double infoGain = antd.getMaxInfoGain();
-                            if (m_Debug) {
-                                System.err.println("Test of \'" + antd.toString()
-                                        + "\': infoGain = " + infoGain + " | Accuracy = "
-                                        + antd.getAccuRate() + "=" + antd.getAccu() + "/"
-                                        + antd.getCover() + " def. accuracy: " + defAcRt);
-                            }
-
-                            if (infoGain > maxInfoGain) {
-                                oneAntd = antd;
-                                coverData = coveredData;
-                                maxInfoGain = infoGain;
-                            }
+                        if (infoGain > maxInfoGain) {
+                            oneAntd = antd;
+                            coverData = coveredData[c];
+                            maxInfoGain = infoGain;
                         }
                     }
                 }
@@ -1492,6 +1931,11 @@ public class ExtRip extends AbstractClassifier implements
                 if (oneAntd == null) {
                     break; // Cannot find antds
                 }
+                if (coverData == growData) {
+                    coverData = (oneAntd instanceof NumericAntd)
+                            ? ((NumericAntd) oneAntd).coveredData(growData, rows)
+                            : ((NominalAntd) oneAntd).coveredData(growData, (int) oneAntd.getAttrValue());
+                }
                 if (Utils.sm(oneAntd.getAccu(), m_MinNo)) {
                     break;// Too low coverage
                 }
@@ -1508,6 +1952,67 @@ public class ExtRip extends AbstractClassifier implements
             }
         }
 
+        /**
+         * Computes the best information gain of one candidate antecedent and
+         * returns the data covered by it. If the presorted rows are given, the
+         * grow data itself is returned for a bag that is only created if the
+         * antecedent is chosen.
+         *
+         * @param antd the candidate antecedent
+         * @param growData the data the rule is grown on
+         * @param rows the rows of growData in the presorted data, or null
+         * @param defAcRt the default accuracy rate of growData
+         * @return the covered data, growData or null
+         */
+        private Instances evaluate(Antd antd, Instances growData, PresortedIndex.Subset rows, double defAcRt) {
+            if (rows != null && antd instanceof NumericAntd) {
+                return ((NumericAntd) antd).findSplit(rows, defAcRt, m_Consequent) ? growData : null;
+            } else if (antd instanceof NominalAntd) {
+                ((NominalAntd) antd).findSplit(growData, defAcRt, m_Consequent);
+                return growData;
+            }
+            return computeInfoGain(growData, defAcRt, antd);
+        }
+
+        /**
+         * Evaluates a range of candidate antecedents on the fork/join pool,
+         * splitting it in halves down to single candidates. Every candidate
+         * only reads the shared data and writes its own slot.
+         */
+        private class CandidateEvaluation extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final Antd[] candidates;
+            private final Instances[] coveredData;
+            private final int from, to;
+            private final Instances growData;
+            private final PresortedIndex.Subset rows;
+            private final double defAcRt;
+
+            CandidateEvaluation(Antd[] candidates, Instances[] coveredData, int from, int to,
+                    Instances growData, PresortedIndex.Subset rows, double defAcRt) {
+                this.candidates = candidates;
+                this.coveredData = coveredData;
+                this.from = from;
+                this.to = to;
+                this.growData = growData;
+                this.rows = rows;
+                this.defAcRt = defAcRt;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from == 1) {
+                    coveredData[from] = evaluate(candidates[from], growData, rows, defAcRt);
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new CandidateEvaluation(candidates, coveredData, from, mid, growData, rows, defAcRt),
+                        new CandidateEvaluation(candidates, coveredData, mid, to, growData, rows, defAcRt));
+            }
+        }
+
         /**
          * Compute the best information gain for the specified antecedent
          *
@@ -1576,14 +2081,15 @@ public class ExtRip extends AbstractClassifier implements
             for (int x = 0; x < size; x++) {
                 Antd antd = m_Antds.get(x);
                 Instances newData = data;
-                data = new Instances(newData, 0); // Make data empty
+                InstanceStore.ReadOnlyInstances covered = new InstanceStore.ReadOnlyInstances(newData, newData.numInstances());
+                data = covered; // Make data empty, instances are not copied
 
                 for (int y = 0; y < newData.numInstances(); y++) {
                     Instance ins = newData.instance(y);
 
                     if (antd.covers(ins)) { // Covered by this antecedent
                         coverage[x] += ins.weight();
-                        data.add(ins); // Add to data for further pruning
+                        covered.append(ins); // Add to data for further pruning
                         if ((int) ins.classValue() == (int) m_Consequent) {
                             worthValue[x] += ins.weight();
                         }
@@ -1692,9 +2198,8 @@ public class ExtRip extends AbstractClassifier implements
         // can classifier handle the data?
         getCapabilities().testWithFail(instances);
 
-        // remove instances with missing class
-        instances = new Instances(instances);
-        instances.deleteWithMissingClass();
+        // remove instances with missing class (the others are not copied)
+        instances = withoutMissingClass(instances);
 
         m_Random = instances.getRandomNumberGenerator(m_Seed);
         m_Total = RuleStats.numAllConditions(instances);
@@ -1713,6 +2218,10 @@ public class ExtRip extends AbstractClassifier implements
             throw new Exception(" Unable to randomize the class orders.");
         }
 
+        // Sort the rows by every numeric attribute once, rules are grown on subsets of them
+        data = PresortedIndex.rowInstances(data);
+        m_Presorted = new PresortedIndex(data);
+
         m_Class = data.classAttribute();
         m_Ruleset = new ArrayList<Rule>();
         m_RulesetStats = new ArrayList<RuleStats>();
@@ -1776,8 +2285,11 @@ public class ExtRip extends AbstractClassifier implements
                 System.err.println("The default DL = " + defDL);
             }
 
-            data = rulesetForOneClass(expFPRate, data, classIndex, defDL);
+            data = rulesetForOneClass(expFPRate, data, classIndex, defDL, warmStartRules(data, classIndex));
         }
+        m_WarmStartRules = null;
+        m_WarmStartClasses = null;
+        m_WarmStartErrors = null;
 
         // Set the default rule
         RipperRule defRule = new RipperRule();
@@ -1806,6 +2318,21 @@ public class ExtRip extends AbstractClassifier implements
         for (int i = 0; i < m_RulesetStats.size(); i++) {
             (m_RulesetStats.get(i)).cleanUp();
         }
+
+        m_Presorted = null;
+
+        // the ruleset is final now, compile it for scoring
+        m_Compiled = (m_Distributions.size() == m_Ruleset.size()) ? CompiledRuleset.compile(m_Ruleset) : null;
+
+        // one immutable decision per rule, handed out by decide()
+        if (m_Distributions.size() == m_Ruleset.size()) {
+            m_Decisions = new Decision[m_Ruleset.size()];
+            for (int i = 0; i < m_Decisions.length; i++) {
+                m_Decisions[i] = new Decision(labelOf(m_Distributions.get(i)), i);
+            }
+        } else {
+            m_Decisions = null;
+        }
     }
 
     public boolean hasRegions() {
@@ -1824,13 +2351,98 @@ public class ExtRip extends AbstractClassifier implements
      */
     @Override
     public double[] distributionForInstance(Instance datum) {
+        int rule = findRule(datum);
+        if (rule >= 0) {
+//            System.out.println("Rule "+rule+" was used.");
+            this.lastUsedRule = rule;
+            return m_Distributions.get(rule);
+        }
+
+        System.err.println("ExtRip classification error: Should never happen!");
+        return new double[datum.classAttribute().numValues()];
+    }
+
+    /**
+     * Classifies the instance without touching lastUsedRule, so it can be
+     * called from several threads at the same time.
+     *
+     * @param datum the instance to be classified
+     * @return the class and the rule that covered the instance
+     */
+    @Override
+    public Decision decide(Instance datum) {
+        int rule = findRule(datum);
+        if (rule >= 0 && m_Decisions != null) {
+            return m_Decisions[rule];
+        }
+        if (rule >= 0) {
+            return new Decision(labelOf(m_Distributions.get(rule)), rule);
+        }
+        System.err.println("ExtRip classification error: Should never happen!");
+        return new Decision(Utils.missingValue(), -1);
+    }
+
+    /**
+     * Classifies a whole batch. With the array backend the used attributes are
+     * copied into columns once and the compiled ruleset is evaluated on them
+     * column by column, otherwise every instance is classified on its own.
+     *
+     * @param data the instances to be classified
+     * @return one decision per instance
+     */
+    @Override
+    public Decision[] decide(Instances data) {
+        int numRows = data.numInstances();
+        Decision[] decisions = new Decision[numRows];
+
+        if (m_Compiled != null && m_Decisions != null && m_ScoringBackend == CompiledRuleset.BACKEND_ARRAYS) {
+            double[][] columns = new double[data.numAttributes()][];
+            for (int att = 0; att < columns.length; att++) {
+                if (m_Compiled.usesAttribute(att)) {
+                    columns[att] = new double[numRows];
+                }
+            }
+            for (int row = 0; row < numRows; row++) {
+                Instance datum = data.instance(row);
+                for (int att = 0; att < columns.length; att++) {
+                    if (columns[att] != null) {
+                        columns[att][row] = datum.value(att);
+                    }
+                }
+            }
+
+            int[] rules = new int[numRows];
+            m_Compiled.findRules(columns, numRows, rules);
+            for (int row = 0; row < numRows; row++) {
+                decisions[row] = (rules[row] >= 0) ? m_Decisions[rules[row]] : decide(data.instance(row));
+            }
+            return decisions;
+        }
+
+        for (int row = 0; row < numRows; row++) {
+            decisions[row] = decide(data.instance(row));
+        }
+        return decisions;
+    }
+
+    /**
+     * Returns the index of the first rule that covers the instance, -1 if
+     * there is none.
+     */
+    private int findRule(Instance datum) {
         try {
+            if (m_Compiled != null && m_ScoringBackend != CompiledRuleset.BACKEND_RULES) {
+                int rule = (m_ScoringBackend == CompiledRuleset.BACKEND_METHOD_HANDLES)
+                        ? m_Compiled.findRuleByHandles(datum)
+                        : m_Compiled.findRule(datum);
+                if (rule >= 0) {
+                    return rule;
+                }
+            }
             for (int i = 0; i < m_Ruleset.size(); i++) {
                 Rule rule = m_Ruleset.get(i);
                 if (rule.covers(datum)) {
-//            System.out.println("Rule "+i+" was used.");
-                    this.lastUsedRule = i;
-                    return m_Distributions.get(i);
+                    return i;
                 }
             }
         } catch (Exception e) {
@@ -1839,9 +2451,31 @@ public class ExtRip extends AbstractClassifier implements
             e.printStackTrace();
             System.exit(234234);
         }
+        return -1;
+    }
 
-        System.err.println("ExtRip classification error: Should never happen!");
-        return new double[datum.classAttribute().numValues()];
+    /**
+     * The class classifyInstance returns for a distribution.
+     */
+    private static double labelOf(double[] dist) {
+        int maxIndex = Utils.maxIndex(dist);
+        return (dist[maxIndex] > 0) ? maxIndex : Utils.missingValue();
+    }
+
+    /**
+     * A canonical description of a rule: its antecedents and the class it
+     * predicts. Rules of different builds with the same signature test the
+     * same conditions.
+     *
+     * @param rule the number of the rule (its decider)
+     * @return the signature, null if there is no such rule
+     */
+    public String getRuleSignature(int rule) {
+        if (m_Ruleset == null || rule < 0 || rule >= m_Ruleset.size()) {
+            return null;
+        }
+        String label = (m_Decisions != null) ? Double.toString(m_Decisions[rule].getLabel()) : "?";
+        return ((RipperRule) m_Ruleset.get(rule)).getSignature() + " => " + label;
     }
 
     @Override
@@ -1865,6 +2499,100 @@ public class ExtRip extends AbstractClassifier implements
         return -1;
     }
 
+    /**
+     * Returns the instances that have a class value. They are not copied.
+     *
+     * @param data
+     * @return
+     */
+    private static Instances withoutMissingClass(Instances data) {
+        InstanceStore.ReadOnlyInstances result = new InstanceStore.ReadOnlyInstances(data, data.numInstances());
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance inst = data.instance(i);
+            if (!inst.isMissing(data.classIndex())) {
+                result.append(inst);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as RuleStats.stratify (the same instances in the same order, the
+     * same random numbers are drawn), but the instances are not copied.
+     *
+     * @param data the data to be stratified
+     * @param folds the number of folds
+     * @param rand the random number generator
+     * @return the stratified data
+     */
+    private static Instances stratify(Instances data, int folds, Random rand) {
+        if (!data.classAttribute().isNominal()) {
+            return data;
+        }
+
+        // Sort by class, the instances of each class in their order in data
+        int[] counts = new int[data.numClasses()];
+        for (int j = 0; j < data.numInstances(); j++) {
+            counts[(int) data.instance(j).classValue()]++;
+        }
+        Instance[][] bagsByClasses = new Instance[counts.length][];
+        for (int i = 0; i < counts.length; i++) {
+            bagsByClasses[i] = new Instance[counts[i]];
+            counts[i] = 0;
+        }
+        for (int j = 0; j < data.numInstances(); j++) {
+            Instance datum = data.instance(j);
+            int c = (int) datum.classValue();
+            bagsByClasses[c][counts[c]++] = datum;
+        }
+
+        // Randomize each class, as Instances.randomize does
+        for (Instance[] bag : bagsByClasses) {
+            for (int j = bag.length - 1; j > 0; j--) {
+                int k = rand.nextInt(j + 1);
+                Instance tmp = bag[j];
+                bag[j] = bag[k];
+                bag[k] = tmp;
+            }
+        }
+
+        InstanceStore.ReadOnlyInstances result = new InstanceStore.ReadOnlyInstances(data, data.numInstances());
+        for (int k = 0; k < folds; k++) {
+            int offset = k, bag = 0;
+            oneFold:
+            while (true) {
+                while (offset >= bagsByClasses[bag].length) {
+                    offset -= bagsByClasses[bag].length;
+                    if (++bag >= bagsByClasses.length) {
+                        break oneFold;
+                    }
+                }
+                result.append(bagsByClasses[bag][offset]);
+                offset += folds;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as RuleStats.partition (growing and pruning data), but the
+     * instances are not copied.
+     *
+     * @param data the data to be partitioned
+     * @param numFolds the number of folds, the last one is the pruning data
+     * @return the growing and the pruning data
+     */
+    private static Instances[] partition(Instances data, int numFolds) {
+        int splits = data.numInstances() * (numFolds - 1) / numFolds;
+        InstanceStore.ReadOnlyInstances[] rt = new InstanceStore.ReadOnlyInstances[2];
+        rt[0] = new InstanceStore.ReadOnlyInstances(data, splits);
+        rt[1] = new InstanceStore.ReadOnlyInstances(data, data.numInstances() - splits);
+        for (int i = 0; i < data.numInstances(); i++) {
+            rt[(i < splits) ? 0 : 1].append(data.instance(i));
+        }
+        return rt;
+    }
+
     /**
      * Build a ruleset for the given class according to the given data
      *
@@ -1872,10 +2600,12 @@ public class ExtRip extends AbstractClassifier implements
      * @param data the given data
      * @param classIndex the given class index
      * @param defDL the default DL in the data
+     * @param warmStart rules of a previous build for the class, checked
+     * before new rules are grown
      * @throws Exception if the ruleset can be built properly
      */
     protected Instances rulesetForOneClass(double expFPRate, Instances data,
-            double classIndex, double defDL) throws Exception {
+            double classIndex, double defDL, ArrayList<RipperRule> warmStart) throws Exception {
 
         Instances newData = data, growData, pruneData;
         boolean stop = false;
@@ -1896,6 +2626,52 @@ public class ExtRip extends AbstractClassifier implements
             System.err.println("\n*** Building stage ***");
         }
 
+        // Rules of the previous build that still pay for themselves are taken
+        // over, a rejected one is skipped instead of stopping the stage
+        ArrayList<RipperRule> keptRules = new ArrayList<RipperRule>();
+        for (RipperRule oldRule : warmStart) {
+            if (!hasPositive) {
+                break;
+            }
+            if (rstats == null) {
+                rstats = new RuleStats();
+                rstats.setNumAllConds(m_Total);
+                rstats.setData(newData);
+            }
+
+            rstats.addAndUpdate(oldRule);
+            int last = rstats.getRuleset().size() - 1;
+            double oldDL = dl + rstats.relativeDL(last, expFPRate, m_CheckErr);
+            rst = rstats.getSimpleStats(last);
+
+            if (Double.isNaN(oldDL) || Double.isInfinite(oldDL)
+                    || oldDL >= dl || checkStop(rst, minDL, oldDL)) {
+                if (m_Debug) {
+                    System.err.println("Previous rule dropped: " + oldRule.toString(m_Class));
+                }
+                rstats.removeLast();
+                if (rstats.getRulesetSize() == 0) {
+                    rstats = null;  // RuleStats cannot add to an emptied ruleset
+                }
+                continue;
+            }
+
+            dl = oldDL;
+            minDL = Math.min(minDL, dl);
+            ruleset.add(oldRule);
+            newData = rstats.getFiltered(last)[1];
+            hasPositive = Utils.gr(rst[5], 0.0);
+            if (m_Debug) {
+                System.err.println("Previous rule kept: " + oldRule.toString(m_Class));
+            }
+
+            // Unless it got worse by more than a standard error, it is not optimized again
+            double prevErr = oldRule.m_PreviousErrorRate;
+            if (rst[4] / rst[0] <= prevErr + Math.sqrt(prevErr * (1 - prevErr) / rst[0])) {
+                keptRules.add(oldRule);
+            }
+        }
+
         while ((!stop) && hasPositive) { // Generate new rules until
             // stopping criteria met
             RipperRule oneRule;
@@ -1906,8 +2682,8 @@ public class ExtRip extends AbstractClassifier implements
                 // to have a bug that makes it not to do so. In order
                 // to simulate it more precisely, we do the same thing.
                 // newData.randomize(m_Random);
-                newData = RuleStats.stratify(newData, m_Folds, m_Random);
-                Instances[] part = RuleStats.partition(newData, m_Folds);
+                newData = stratify(newData, m_Folds, m_Random);
+                Instances[] part = partition(newData, m_Folds);
                 growData = part[0];
                 pruneData = part[1];
                 // growData=newData.trainCV(m_Folds, m_Folds-1);
@@ -2021,8 +2797,8 @@ public class ExtRip extends AbstractClassifier implements
                     // examples
                     // Re-do shuffling and stratification
                     // newData.randomize(m_Random);
-                    newData = RuleStats.stratify(newData, m_Folds, m_Random);
-                    Instances[] part = RuleStats.partition(newData, m_Folds);
+                    newData = stratify(newData, m_Folds, m_Random);
+                    Instances[] part = partition(newData, m_Folds);
                     growData = part[0];
                     pruneData = part[1];
                     // growData=newData.trainCV(m_Folds, m_Folds-1);
@@ -2034,7 +2810,9 @@ public class ExtRip extends AbstractClassifier implements
                                 + isResidual + "| data size: " + newData.sumOfWeights());
                     }
 
-                    if (isResidual) {
+                    if (!isResidual && keptRules.contains(ruleset.get(position))) {
+                        finalRule = (RipperRule) ruleset.get(position); // kept from the previous build
+                    } else if (isResidual) {
                         RipperRule newRule = new RipperRule();
                         newRule.setConsequent(classIndex);
                         if (m_Debug) {
@@ -2087,11 +2865,11 @@ public class ExtRip extends AbstractClassifier implements
                         RipperRule revision = (RipperRule) oldRule.copy();
 
                         // For revision, first rm the data covered by the old rule
-                        Instances newGrowData = new Instances(growData, 0);
+                        InstanceStore.ReadOnlyInstances newGrowData = new InstanceStore.ReadOnlyInstances(growData, growData.numInstances());
                         for (int b = 0; b < growData.numInstances(); b++) {
                             Instance inst = growData.instance(b);
                             if (revision.covers(inst)) {
-                                newGrowData.add(inst);
+                                newGrowData.append(inst);
                             }
                         }
                         revision.grow(newGrowData);
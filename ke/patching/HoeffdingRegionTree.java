@@ -0,0 +1,648 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.io.Serializable;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.Capabilities;
+import weka.core.Capabilities.Capability;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Statistics;
+import weka.core.Utils;
+
+/**
+ * An incremental region decider: a Hoeffding tree on the wrong/right problem
+ * (see WrongRightView) that learns from one instance at a time, so the error
+ * regions do not have to be induced again from the Instance Store at every
+ * update.
+ *
+ * Every leaf is a decider. While the tree learns, a leaf keeps its id until
+ * it is split and its children get new ids, so the ids have gaps. A
+ * snapshot() numbers its leaves 0 .. numLeaves() - 1, so the patches built
+ * for a snapshot get no empty regions. A leaf is split once a split on one attribute is better than
+ * all others by more than the Hoeffding bound (or the bound fell below the
+ * tie threshold). Numeric attributes are split in two at one of a few
+ * candidate points between their smallest and largest value, using a normal
+ * distribution per class; nominal attributes get one branch per value.
+ *
+ * Looking up the leaf of an instance follows one path from the root and does
+ * not allocate anything. Instances with a missing value at a split follow the
+ * branch most instances took when the split was made, so every instance
+ * reaches a leaf and there is no default decider.
+ *
+ * The tree only learns on the thread that trains it. Other threads classify
+ * with a snapshot() of it.
+ */
+public class HoeffdingRegionTree extends AbstractClassifier
+        implements UpdateableClassifier, DeciderEnumerator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of candidate split points per numeric attribute
+     */
+    private static final int NUMERIC_SPLIT_POINTS = 10;
+
+    /**
+     * The decision of a tree that has not learned anything yet
+     */
+    private static final Decision NO_LEAF = new Decision(WrongRightView.RIGHT, -1);
+
+    /**
+     * How much weight a leaf sees between two split attempts
+     */
+    private int m_GracePeriod = 200;
+
+    /**
+     * The allowed error of a split decision (delta of the Hoeffding bound)
+     */
+    private double m_SplitConfidence = 1e-7;
+
+    /**
+     * Below this Hoeffding bound, the best split is taken even if the second
+     * best is as good
+     */
+    private double m_TieThreshold = 0.05;
+
+    private Instances m_Header = null;
+    private Node m_Root = null;
+    private int m_NumLeafIds = 0;
+    private boolean m_Frozen = false;   // a snapshot: only decides
+    private int lastUsedLeaf = -1;
+
+    /**
+     * Learns the tree from scratch on the given instances, whose class is the
+     * wrong/right label.
+     *
+     * @param data
+     * @throws Exception
+     */
+    @Override
+    public void buildClassifier(Instances data) throws Exception {
+        getCapabilities().testWithFail(data);
+
+        m_Header = null;
+        m_Root = null;
+        m_NumLeafIds = 0;
+        m_Frozen = false;
+        for (int i = 0; i < data.numInstances(); i++) {
+            updateClassifier(data.instance(i));
+        }
+    }
+
+    /**
+     * Learns one instance, its class is the wrong/right label.
+     *
+     * @param inst
+     */
+    @Override
+    public void updateClassifier(Instance inst) {
+        if (!inst.classIsMissing()) {
+            learn(inst, inst.classValue());
+        }
+    }
+
+    /**
+     * Learns one instance with the given label. The class attribute of the
+     * instance is not looked at, so instances of the original problem can be
+     * used as they are.
+     *
+     * @param inst
+     * @param label WrongRightView.WRONG or WrongRightView.RIGHT
+     */
+    public void learn(Instance inst, double label) {
+        if (m_Frozen) {
+            throw new UnsupportedOperationException("This tree is a snapshot, it cannot learn.");
+        }
+        if (m_Root == null) {
+            m_Header = new Instances(inst.dataset(), 0);
+            m_Root = newLeaf(new double[2]);
+        }
+
+        Node leaf = leafOf(inst);
+        leaf.stats.add(inst, (int) label, inst.weight());
+        leaf.updateDecision();
+
+        if (leaf.stats.weight - leaf.stats.weightAtLastCheck >= m_GracePeriod) {
+            leaf.stats.weightAtLastCheck = leaf.stats.weight;
+            trySplit(leaf);
+        }
+    }
+
+    /**
+     * A copy of the current tree that only decides: the same structure and
+     * leaves, without the statistics, and with the leaves numbered without
+     * gaps. It does not change when this tree learns on.
+     *
+     * @return
+     */
+    public HoeffdingRegionTree snapshot() {
+        HoeffdingRegionTree copy = new HoeffdingRegionTree();
+        copy.m_GracePeriod = m_GracePeriod;
+        copy.m_SplitConfidence = m_SplitConfidence;
+        copy.m_TieThreshold = m_TieThreshold;
+        copy.m_Header = m_Header;
+        int[] nextId = new int[1];
+        copy.m_Root = (m_Root == null) ? null : m_Root.copyStructure(nextId);
+        copy.m_NumLeafIds = nextId[0];
+        copy.m_Frozen = true;
+        return copy;
+    }
+
+    /**
+     * The number of leaves
+     *
+     * @return
+     */
+    public int numLeaves() {
+        return (m_Root == null) ? 0 : m_Root.numLeaves();
+    }
+
+    @Override
+    public Decision decide(Instance inst) {
+        if (m_Root == null) {
+            return NO_LEAF;
+        }
+        return leafOf(inst).decision;
+    }
+
+    @Override
+    public Decision[] decide(Instances data) {
+        Decision[] decisions = new Decision[data.numInstances()];
+        for (int i = 0; i < decisions.length; i++) {
+            decisions[i] = decide(data.instance(i));
+        }
+        return decisions;
+    }
+
+    @Override
+    public double classifyInstance(Instance inst) {
+        Decision decision = decide(inst);
+        this.lastUsedLeaf = decision.getDecider();
+        return decision.getLabel();
+    }
+
+    @Override
+    public double[] distributionForInstance(Instance inst) {
+        double[] dist = new double[2];
+        dist[(int) classifyInstance(inst)] = 1;
+        return dist;
+    }
+
+    /**
+     * The number of leaf ids. In a snapshot these are its leaves. In a tree
+     * that learns, they are all ids ever given out, and the ids of leaves
+     * that have been split since are gaps that no instance reaches.
+     *
+     * @return
+     */
+    @Override
+    public int getAmountOfDeciders() {
+        return m_NumLeafIds;
+    }
+
+    @Override
+    public int getLastUsedDecider() {
+        return lastUsedLeaf;
+    }
+
+    /**
+     * Every instance reaches a leaf, there is no default leaf.
+     *
+     * @return -1
+     */
+    @Override
+    public int getDefaultDecider() {
+        return -1;
+    }
+
+    @Override
+    public Capabilities getCapabilities() {
+        Capabilities result = super.getCapabilities();
+        result.disableAll();
+
+        // attributes
+        result.enable(Capability.NOMINAL_ATTRIBUTES);
+        result.enable(Capability.NUMERIC_ATTRIBUTES);
+        result.enable(Capability.DATE_ATTRIBUTES);
+        result.enable(Capability.MISSING_VALUES);
+
+        // class
+        result.enable(Capability.BINARY_CLASS);
+        result.enable(Capability.MISSING_CLASS_VALUES);
+
+        result.setMinimumNumberInstances(0);
+        return result;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String gracePeriodTipText() {
+        return "The weight a leaf has to see between two split attempts.";
+    }
+
+    public void setGracePeriod(int gracePeriod) {
+        m_GracePeriod = gracePeriod;
+    }
+
+    public int getGracePeriod() {
+        return m_GracePeriod;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String splitConfidenceTipText() {
+        return "The allowed error of a split decision (delta of the Hoeffding bound).";
+    }
+
+    public void setSplitConfidence(double splitConfidence) {
+        m_SplitConfidence = splitConfidence;
+    }
+
+    public double getSplitConfidence() {
+        return m_SplitConfidence;
+    }
+
+    /**
+     * Returns the tip text for this property
+     *
+     * @return tip text for this property suitable for displaying in the
+     * explorer/experimenter gui
+     */
+    public String tieThresholdTipText() {
+        return "Below this Hoeffding bound the best split is taken even if others are as good.";
+    }
+
+    public void setTieThreshold(double tieThreshold) {
+        m_TieThreshold = tieThreshold;
+    }
+
+    public double getTieThreshold() {
+        return m_TieThreshold;
+    }
+
+    @Override
+    public String toString() {
+        if (m_Root == null) {
+            return "HoeffdingRegionTree: no model built yet.";
+        }
+        StringBuilder text = new StringBuilder("HoeffdingRegionTree (" + numLeaves() + " leaves)");
+        m_Root.describe(text, 0, m_Header);
+        return text.append("\n").toString();
+    }
+
+    /**
+     * Follows the splits down to the leaf of the instance.
+     */
+    private Node leafOf(Instance inst) {
+        Node node = m_Root;
+        while (node.children != null) {
+            double value = inst.value(node.attribute);
+            int branch;
+            if (Utils.isMissingValue(value)) {
+                branch = node.missingBranch;
+            } else if (node.nominal) {
+                branch = (int) value;
+            } else {
+                branch = (value <= node.splitPoint) ? 0 : 1;
+            }
+            node = node.children[branch];
+        }
+        return node;
+    }
+
+    private Node newLeaf(double[] classWeights) {
+        Node leaf = new Node();
+        leaf.id = m_NumLeafIds++;
+        leaf.stats = new LeafStats(m_Header, classWeights);
+        leaf.updateDecision();
+        return leaf;
+    }
+
+    /**
+     * Splits the leaf if the best split is good enough.
+     */
+    private void trySplit(Node leaf) {
+        LeafStats stats = leaf.stats;
+        if (stats.classWeights[0] == 0 || stats.classWeights[1] == 0) {
+            return; // pure
+        }
+
+        double bestMerit = 0;       // not splitting has merit 0
+        double secondMerit = 0;
+        int bestAttribute = -1;
+        double bestPoint = Double.NaN;
+
+        for (int att = 0; att < m_Header.numAttributes(); att++) {
+            if (att == m_Header.classIndex()) {
+                continue;
+            }
+            double merit;
+            double point = Double.NaN;
+            if (m_Header.attribute(att).isNominal()) {
+                merit = stats.nominalMerit(att);
+            } else {
+                double[] best = stats.bestNumericSplit(att);
+                merit = best[0];
+                point = best[1];
+            }
+            if (merit > bestMerit) {
+                secondMerit = bestMerit;
+                bestMerit = merit;
+                bestAttribute = att;
+                bestPoint = point;
+            } else if (merit > secondMerit) {
+                secondMerit = merit;
+            }
+        }
+        if (bestAttribute < 0) {
+            return;
+        }
+
+        // the range of the information gain of two classes is 1 bit
+        double bound = Math.sqrt(Math.log(1 / m_SplitConfidence) / (2 * stats.weight));
+        if (bestMerit - secondMerit <= bound && bound >= m_TieThreshold) {
+            return;
+        }
+
+        double[][] branchWeights = m_Header.attribute(bestAttribute).isNominal()
+                ? stats.nominalBranches(bestAttribute)
+                : stats.numericBranches(bestAttribute, bestPoint);
+
+        leaf.attribute = bestAttribute;
+        leaf.nominal = m_Header.attribute(bestAttribute).isNominal();
+        leaf.splitPoint = bestPoint;
+        leaf.children = new Node[branchWeights.length];
+        int missingBranch = 0;
+        for (int b = 0; b < branchWeights.length; b++) {
+            leaf.children[b] = newLeaf(branchWeights[b]);
+            if (Utils.sum(branchWeights[b]) > Utils.sum(branchWeights[missingBranch])) {
+                missingBranch = b;
+            }
+        }
+        leaf.missingBranch = missingBranch;
+        leaf.stats = null;
+        leaf.decision = null;
+    }
+
+    /**
+     * A split or a leaf of the tree.
+     */
+    private static class Node implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        // splits
+        int attribute = -1;
+        boolean nominal;
+        double splitPoint;      // numeric: branch 0 is <= splitPoint
+        int missingBranch;
+        Node[] children = null;
+
+        // leaves
+        int id = -1;
+        Decision decision;
+        LeafStats stats;        // null in snapshots
+
+        /**
+         * The label is the class with the most weight, "right" on a tie, so
+         * a leaf is only an error region if most of its instances are wrong.
+         */
+        void updateDecision() {
+            double label = (stats.classWeights[0] > stats.classWeights[1]) ? WrongRightView.WRONG : WrongRightView.RIGHT;
+            if (decision == null || decision.getLabel() != label) {
+                decision = new Decision(label, id);
+            }
+        }
+
+        /**
+         * Copies the structure, the leaves are numbered from nextId[0] on.
+         */
+        Node copyStructure(int[] nextId) {
+            Node copy = new Node();
+            copy.attribute = attribute;
+            copy.nominal = nominal;
+            copy.splitPoint = splitPoint;
+            copy.missingBranch = missingBranch;
+            if (children != null) {
+                copy.children = new Node[children.length];
+                for (int b = 0; b < children.length; b++) {
+                    copy.children[b] = children[b].copyStructure(nextId);
+                }
+            } else {
+                copy.id = nextId[0]++;
+                copy.decision = new Decision(decision.getLabel(), copy.id);
+            }
+            return copy;
+        }
+
+        int numLeaves() {
+            if (children == null) {
+                return 1;
+            }
+            int n = 0;
+            for (Node child : children) {
+                n += child.numLeaves();
+            }
+            return n;
+        }
+
+        void describe(StringBuilder text, int depth, Instances header) {
+            if (children == null) {
+                text.append(": leaf ").append(id).append(decision.getLabel() == WrongRightView.WRONG ? " (wrong)" : " (right)");
+                return;
+            }
+            for (int b = 0; b < children.length; b++) {
+                text.append("\n");
+                for (int i = 0; i < depth; i++) {
+                    text.append("|   ");
+                }
+                text.append(header.attribute(attribute).name());
+                if (nominal) {
+                    text.append(" = ").append(header.attribute(attribute).value(b));
+                } else {
+                    text.append(b == 0 ? " <= " : " > ").append(Utils.doubleToString(splitPoint, 6));
+                }
+                children[b].describe(text, depth + 1, header);
+            }
+        }
+    }
+
+    /**
+     * What a leaf has seen since it was created: the weight per class and per
+     * attribute either the weight per value and class (nominal) or the
+     * weight, mean and variance per class and the range (numeric).
+     */
+    private static class LeafStats implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final double[] classWeights;
+        double weight;
+        double weightAtLastCheck;
+
+        final double[][][] nominalCounts;   // [att][value][class], null for numeric attributes
+        final double[][] numWeight;         // [att][class]
+        final double[][] numMean;
+        final double[][] numM2;
+        final double[] numMin;
+        final double[] numMax;
+
+        LeafStats(Instances header, double[] initialClassWeights) {
+            int numAtts = header.numAttributes();
+            this.classWeights = initialClassWeights.clone();
+            this.weight = Utils.sum(initialClassWeights);
+            this.weightAtLastCheck = this.weight;
+            this.nominalCounts = new double[numAtts][][];
+            this.numWeight = new double[numAtts][];
+            this.numMean = new double[numAtts][];
+            this.numM2 = new double[numAtts][];
+            this.numMin = new double[numAtts];
+            this.numMax = new double[numAtts];
+            for (int att = 0; att < numAtts; att++) {
+                if (att == header.classIndex()) {
+                    continue;
+                }
+                if (header.attribute(att).isNominal()) {
+                    this.nominalCounts[att] = new double[header.attribute(att).numValues()][2];
+                } else {
+                    this.numWeight[att] = new double[2];
+                    this.numMean[att] = new double[2];
+                    this.numM2[att] = new double[2];
+                    this.numMin[att] = Double.POSITIVE_INFINITY;
+                    this.numMax[att] = Double.NEGATIVE_INFINITY;
+                }
+            }
+        }
+
+        void add(Instance inst, int label, double w) {
+            this.classWeights[label] += w;
+            this.weight += w;
+            for (int att = 0; att < this.nominalCounts.length; att++) {
+                if (this.nominalCounts[att] == null && this.numWeight[att] == null) {
+                    continue;   // the class
+                }
+                double value = inst.value(att);
+                if (Utils.isMissingValue(value)) {
+                    continue;
+                }
+                if (this.nominalCounts[att] != null) {
+                    this.nominalCounts[att][(int) value][label] += w;
+                } else {
+                    // weighted Welford update
+                    double n = this.numWeight[att][label] + w;
+                    double delta = value - this.numMean[att][label];
+                    this.numMean[att][label] += delta * w / n;
+                    this.numM2[att][label] += w * delta * (value - this.numMean[att][label]);
+                    this.numWeight[att][label] = n;
+                    this.numMin[att] = Math.min(this.numMin[att], value);
+                    this.numMax[att] = Math.max(this.numMax[att], value);
+                }
+            }
+        }
+
+        double nominalMerit(int att) {
+            return infoGain(nominalBranches(att));
+        }
+
+        double[][] nominalBranches(int att) {
+            double[][] counts = this.nominalCounts[att];
+            double[][] branches = new double[counts.length][];
+            for (int v = 0; v < counts.length; v++) {
+                branches[v] = counts[v].clone();
+            }
+            return branches;
+        }
+
+        /**
+         * @return the best information gain and its split point
+         */
+        double[] bestNumericSplit(int att) {
+            double[] best = {0, Double.NaN};
+            double min = this.numMin[att];
+            double max = this.numMax[att];
+            if (!(min < max)) {
+                return best;
+            }
+            double step = (max - min) / (NUMERIC_SPLIT_POINTS + 1);
+            for (int k = 1; k <= NUMERIC_SPLIT_POINTS; k++) {
+                double point = min + k * step;
+                double merit = infoGain(numericBranches(att, point));
+                if (merit > best[0]) {
+                    best[0] = merit;
+                    best[1] = point;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * The estimated class weights at or below the point and above it.
+         */
+        double[][] numericBranches(int att, double point) {
+            double[][] branches = new double[2][2];
+            for (int c = 0; c < 2; c++) {
+                double n = this.numWeight[att][c];
+                if (n <= 0) {
+                    continue;
+                }
+                double mean = this.numMean[att][c];
+                double sd = Math.sqrt(this.numM2[att][c] / n);
+                double below;
+                if (sd > 0) {
+                    below = n * Statistics.normalProbability((point - mean) / sd);
+                } else {
+                    below = (mean <= point) ? n : 0;
+                }
+                branches[0][c] = below;
+                branches[1][c] = n - below;
+            }
+            return branches;
+        }
+
+        private double infoGain(double[][] branches) {
+            double total = 0;
+            double after = 0;
+            double[] before = new double[2];
+            for (double[] branch : branches) {
+                double w = branch[0] + branch[1];
+                total += w;
+                after += w * entropy(branch[0], branch[1]);
+                before[0] += branch[0];
+                before[1] += branch[1];
+            }
+            if (total <= 0) {
+                return 0;
+            }
+            return entropy(before[0], before[1]) - after / total;
+        }
+
+        private static double entropy(double a, double b) {
+            double n = a + b;
+            if (n <= 0) {
+                return 0;
+            }
+            double e = 0;
+            if (a > 0) {
+                e -= a / n * Utils.log2(a / n);
+            }
+            if (b > 0) {
+                e -= b / n * Utils.log2(b / n);
+            }
+            return e;
+        }
+    }
+}
@@ -5,106 +5,646 @@
  */
 package moa.tud.ke.patching;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Random;
 
-import moa.classifiers.core.driftdetection.ADWIN;
+import weka.core.AbstractInstance;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
 
 /**
  * Stores batches of instances stores n batches or all if you want to.
  *
+ * The batches are kept in a ring buffer, so adding a batch and dropping the
+ * oldest one are O(1). Besides the number of batches, the number of retained
+ * instances can be limited as well; the oldest batch is then trimmed from the
+ * front by moving its start offset instead of deleting instances.
+ *
  * @author SKauschke
  */
 public class InstanceStore {
 
     int numBatches = Integer.MAX_VALUE;
-    LinkedList<Instances> batches;
+    int maxInstances = Integer.MAX_VALUE;
+
+    private Batch[] batches = new Batch[8];  // ring buffer, oldest batch at head
+    private int[] offsets = new int[8];  // first retained instance of each batch
+    private double[][] predictions = new double[8][];  // base classifier prediction per instance, if known
+    private int head = 0;
+    private int count = 0;
+    private int totalInstances = 0;
+
+    protected Instances header;
+    private Instances view; // cached merged view, dropped whenever the store changes
+    private double[] viewPredictions;
 
     public InstanceStore(int numBatches) {
         this.numBatches = numBatches;
-        this.batches = new LinkedList<Instances>();
     }
 
     public InstanceStore() {
-        this.batches = new LinkedList<Instances>();
+    }
+
+    /**
+     * Layouts that can be chosen with create(...), in the order of the
+     * instanceStoreLayout option.
+     */
+    public static final String[] LAYOUTS = {"Rows", "Columns", "ColumnsFloat", "ColumnsOffHeap", "ColumnsFloatOffHeap"};
+
+    /**
+     * Creates an instance store with one of the LAYOUTS.
+     *
+     * @param layout index into LAYOUTS
+     * @param numBatches
+     * @return
+     */
+    public static InstanceStore create(int layout, int numBatches) {
+        switch (layout) {
+            case 1:
+                return new ColumnarInstanceStore(numBatches, false, false);
+            case 2:
+                return new ColumnarInstanceStore(numBatches, true, false);
+            case 3:
+                return new ColumnarInstanceStore(numBatches, false, true);
+            case 4:
+                return new ColumnarInstanceStore(numBatches, true, true);
+            default:
+                return new InstanceStore(numBatches);
+        }
     }
 
     public void addInstances(Instances inst) {
+        addInstances(inst, null);
+    }
 
-        batches.add(inst);
-        
-        while (batches.size() > this.numBatches) {
-            batches.removeFirst(); // FIFO
+    /**
+     * Adds a batch together with the predictions of the base classifier for
+     * its instances, so that they never have to be predicted again while the
+     * batch is retained.
+     *
+     * @param inst
+     * @param basePredictions one prediction per instance of inst, or null
+     */
+    public void addInstances(Instances inst, double[] basePredictions) {
+
+        if (basePredictions != null && basePredictions.length < inst.numInstances()) {
+            System.err.println("InstanceStore: " + basePredictions.length + " base predictions for " + inst.numInstances() + " instances, ignoring them.");
+            basePredictions = null;
+        }
+
+        setHeader(inst);
+
+        if (this.count == this.batches.length) {
+            grow();
         }
+        int slot = slot(this.count);
+        this.batches[slot] = createBatch(inst);
+        this.offsets[slot] = 0;
+        this.predictions[slot] = basePredictions;
+        this.count++;
+        this.totalInstances += inst.numInstances();
 
+        while (this.count > Math.max(this.numBatches, 1)) {
+            removeFirst(); // FIFO
+        }
+        trimToMaxInstances();
+
+        this.view = null;
+        this.viewPredictions = null;
     }
 
     /**
-     * Retrieves a batch of instances if exists, otherwise returns null.
+     * Fixes the header of the stored instances. Only the first header counts,
+     * later calls are ignored. Call it as soon as the header is known, so that
+     * a layout that cannot store the attributes fails before any batch is
+     * collected.
+     *
+     * @param header
+     * @throws IllegalArgumentException if the layout cannot store instances
+     * of this header
+     */
+    public void setHeader(Instances header) {
+        if (this.header == null) {
+            checkHeader(header);
+            this.header = new Instances(header, 0);
+        }
+    }
+
+    /**
+     * Retrieves a batch of instances if exists, otherwise returns null. Index 0
+     * is the oldest batch. If the batch has been trimmed, only its retained
+     * instances are returned (read-only).
      *
      * @param index
      * @return
      */
     public Instances getBatch(int index) {
-        try {
-            return batches.get(index);
-        } catch (Exception e) {
-            System.err.println(e.getMessage());
+        if (index < 0 || index >= this.count) {
             System.err.println("Index " + index + " not found in InstanceStore.");
+            return null;
+        }
+        int slot = slot(index);
+        Batch batch = this.batches[slot];
+        if (this.offsets[slot] == 0 && batch instanceof RowBatch) {
+            return ((RowBatch) batch).instances;
+        }
+        ReadOnlyInstances part = new ReadOnlyInstances(this.header, batch.numInstances() - this.offsets[slot]);
+        for (int i = this.offsets[slot]; i < batch.numInstances(); i++) {
+            part.append(batch.instance(i));
         }
-        return null;
+        return part;
     }
 
-    public void cleanBatch(int index, int size){
-        Instances inst = getBatch(index);
-        System.out.println("Size Batch: " + inst.size());
-        while (inst.size() > size) {
-            inst.delete(0);
+    /**
+     * Keeps only the last size instances of a batch.
+     *
+     * @param index
+     * @param size
+     */
+    public void cleanBatch(int index, int size) {
+        if (index < 0 || index >= this.count) {
+            System.err.println("Index " + index + " not found in InstanceStore.");
+            return;
         }
-        System.out.println("Size Batch: " + inst.size());
+        int slot = slot(index);
+        int retained = this.batches[slot].numInstances() - this.offsets[slot];
+        System.out.println("Size Batch: " + retained);
+        if (retained > size) {
+            int cut = retained - Math.max(size, 0);
+            this.offsets[slot] += cut;
+            this.totalInstances -= cut;
+            this.view = null;
+            this.viewPredictions = null;
+        }
+        System.out.println("Size Batch: " + (this.batches[slot].numInstances() - this.offsets[slot]));
     }
 
     /**
-     * Merges all the batches of instances and returns them.
+     * Returns all the retained instances of all batches, oldest first, as one
+     * read-only set. The instances are not copied: the set references the
+     * instances of the batches, so it must not be modified (make a copy with
+     * new Instances(...) if you need to change it). It stays valid when the
+     * store changes afterwards.
      *
      * @return
      */
     public Instances getInstances() {
-        return mergeAllInstances();
+        if (this.count == 0) {
+            return null;
+        }
+        if (this.view == null) {
+            Instances merged = mergeAllInstances();
+            if (!cacheView()) {
+                return merged;
+            }
+            this.view = merged;
+        }
+        return this.view;
     }
 
     /**
-     * Merges all the batches of instances.
-     * Probably theres a way to speed this up?
+     * Collects references to all retained instances.
+     *
      * @return
      */
     private Instances mergeAllInstances() {
 
-//        System.out.println("Merging instances of "+this.batches.size()+" batches.");
-        if (this.batches.size() == 0) {
+        ReadOnlyInstances merged = new ReadOnlyInstances(this.header, this.totalInstances);
+
+        for (int b = 0; b < this.count; b++) {
+            int slot = slot(b);
+            Batch batch = this.batches[slot];
+            for (int i = this.offsets[slot]; i < batch.numInstances(); i++) {
+                merged.append(batch.instance(i));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns the base classifier predictions for the instances returned by
+     * getInstances(), in the same order. Returns null if they are not known
+     * for all retained instances. The array must not be modified.
+     *
+     * @return
+     */
+    public double[] getBasePredictions() {
+        if (this.count == 0) {
             return null;
         }
+        if (this.viewPredictions == null) {
+            double[] merged = new double[this.totalInstances];
+            int pos = 0;
+            for (int b = 0; b < this.count; b++) {
+                int slot = slot(b);
+                if (this.predictions[slot] == null) {
+                    return null;
+                }
+                int n = this.batches[slot].numInstances() - this.offsets[slot];
+                System.arraycopy(this.predictions[slot], this.offsets[slot], merged, pos, n);
+                pos += n;
+            }
+            this.viewPredictions = merged;
+        }
+        return this.viewPredictions;
+    }
+
+    /**
+     * Returns the number of instances that are currently retained.
+     *
+     * @return
+     */
+    public int numInstances() {
+        return this.totalInstances;
+    }
 
-        Instances merged = new Instances(this.batches.getFirst());  // deep copy necessary!
+    /**
+     * Returns the number of batches that are currently retained.
+     *
+     * @return
+     */
+    public int numStoredBatches() {
+        return this.count;
+    }
 
-        if (this.batches.size() == 1) {
-            return merged;
+    public void setNumBatches(int numBatches) {
+        this.numBatches = numBatches;
+    }
+
+    /**
+     * Limits the number of retained instances. The limit is applied when the
+     * next batch is added, the oldest instances are dropped first.
+     *
+     * @param maxInstances
+     */
+    public void setMaxInstances(int maxInstances) {
+        this.maxInstances = maxInstances;
+    }
+
+    /**
+     * Returns an estimate of the memory that is used by the retained batches
+     * (including instances that were trimmed away, but still belong to a
+     * retained batch).
+     *
+     * @return bytes
+     */
+    public long byteFootprint() {
+        long bytes = 0;
+        for (int b = 0; b < this.count; b++) {
+            bytes += this.batches[slot(b)].byteFootprint();
+            if (this.predictions[slot(b)] != null) {
+                bytes += 16 + 8L * this.predictions[slot(b)].length;
+            }
         }
+        return bytes;
+    }
+
+    /**
+     * Turns a new batch into the form in which it is retained. The default
+     * keeps the Weka instances as they are.
+     *
+     * @param inst
+     * @return
+     */
+    protected Batch createBatch(Instances inst) {
+        return new RowBatch(inst);
+    }
+
+    /**
+     * Throws an IllegalArgumentException if instances of the header cannot be
+     * stored in this layout. Every header is fine for Weka instances.
+     *
+     * @param header
+     */
+    protected void checkHeader(Instances header) {
+    }
 
-        for (int i = 1; i < this.batches.size(); i++) {
-            Instances inst = this.batches.get(i);
-            Iterator it = inst.iterator();
-            while (it.hasNext()) {
-                Instance in = (Instance) it.next();
-                merged.add(in);
+    /**
+     * Whether the merged view is kept until the store changes. Stores that
+     * create the instances on demand do not keep them, otherwise the savings
+     * would be gone until the next batch arrives.
+     *
+     * @return
+     */
+    protected boolean cacheView() {
+        return true;
+    }
+
+    private int slot(int index) {
+        return (this.head + index) % this.batches.length;
+    }
+
+    private void removeFirst() {
+        this.totalInstances -= this.batches[this.head].numInstances() - this.offsets[this.head];
+        this.batches[this.head] = null;
+        this.offsets[this.head] = 0;
+        this.predictions[this.head] = null;
+        this.head = (this.head + 1) % this.batches.length;
+        this.count--;
+    }
+
+    private void trimToMaxInstances() {
+        while (this.totalInstances > this.maxInstances && this.count > 0) {
+            int excess = this.totalInstances - this.maxInstances;
+            int retained = this.batches[this.head].numInstances() - this.offsets[this.head];
+            if (excess >= retained) {
+                removeFirst();
+            } else {
+                this.offsets[this.head] += excess;
+                this.totalInstances -= excess;
             }
         }
-        return merged;
     }
 
-    public void setNumBatches(int numBatches){
-        this.numBatches = numBatches;
+    private void grow() {
+        Batch[] newBatches = new Batch[this.batches.length * 2];
+        int[] newOffsets = new int[newBatches.length];
+        double[][] newPredictions = new double[newBatches.length][];
+        for (int i = 0; i < this.count; i++) {
+            newBatches[i] = this.batches[slot(i)];
+            newOffsets[i] = this.offsets[slot(i)];
+            newPredictions[i] = this.predictions[slot(i)];
+        }
+        this.batches = newBatches;
+        this.offsets = newOffsets;
+        this.predictions = newPredictions;
+        this.head = 0;
+    }
+
+    /**
+     * One retained batch.
+     */
+    protected interface Batch {
+
+        int numInstances();
+
+        /**
+         * Returns the instance at the given position of the batch. Its
+         * dataset is the header of the store.
+         */
+        Instance instance(int index);
+
+        long byteFootprint();
+    }
+
+    /**
+     * A batch that keeps the Weka instances themselves.
+     */
+    static class RowBatch implements Batch {
+
+        final Instances instances;
+
+        RowBatch(Instances instances) {
+            this.instances = instances;
+        }
+
+        @Override
+        public int numInstances() {
+            return this.instances.numInstances();
+        }
+
+        @Override
+        public Instance instance(int index) {
+            return this.instances.instance(index);
+        }
+
+        @Override
+        public long byteFootprint() {
+            // per DenseInstance: object (~32 bytes) plus its value array (16 bytes + 8 per value)
+            long perInstance = 32 + 16 + 8L * this.instances.numAttributes();
+            return 16 + 8L * this.instances.numInstances() + perInstance * this.instances.numInstances();
+        }
+    }
+
+    /**
+     * An instance that reads its values from somewhere else and cannot be
+     * changed. Subclasses only provide value and numAttributes, copies are
+     * ordinary dense instances with their own values.
+     */
+    abstract static class ReadOnlyInstance extends AbstractInstance {
+
+        private static final long serialVersionUID = 1L;
+
+        ReadOnlyInstance(double weight) {
+            m_Weight = weight;
+        }
+
+        private static UnsupportedOperationException readOnly() {
+            return new UnsupportedOperationException("This instance is a read-only view, copy it first.");
+        }
+
+        @Override
+        public int numValues() {
+            return numAttributes();
+        }
+
+        @Override
+        public int index(int position) {
+            return position;
+        }
+
+        @Override
+        public double valueSparse(int indexOfIndex) {
+            return value(indexOfIndex);
+        }
+
+        @Override
+        public boolean isMissingSparse(int indexOfIndex) {
+            return isMissing(indexOfIndex);
+        }
+
+        @Override
+        public double[] toDoubleArray() {
+            double[] values = new double[numAttributes()];
+            for (int att = 0; att < values.length; att++) {
+                values[att] = value(att);
+            }
+            return values;
+        }
+
+        @Override
+        public Object copy() {
+            return copy(toDoubleArray());
+        }
+
+        @Override
+        public Instance copy(double[] values) {
+            DenseInstance result = new DenseInstance(m_Weight, values);
+            result.setDataset(m_Dataset);
+            return result;
+        }
+
+        @Override
+        public Instance mergeInstance(Instance inst) {
+            return ((Instance) copy()).mergeInstance(inst);
+        }
+
+        @Override
+        public String toStringNoWeight() {
+            return ((Instance) copy()).toStringNoWeight();
+        }
+
+        @Override
+        public String toStringNoWeight(int afterDecimalPoint) {
+            return ((Instance) copy()).toStringNoWeight(afterDecimalPoint);
+        }
+
+        @Override
+        public void setValue(int attIndex, double value) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setValueSparse(int indexOfIndex, double value) {
+            throw readOnly();
+        }
+
+        @Override
+        public void replaceMissingValues(double[] array) {
+            throw readOnly();
+        }
+
+        @Override
+        protected void forceDeleteAttributeAt(int position) {
+            throw readOnly();
+        }
+
+        @Override
+        protected void forceInsertAttributeAt(int position) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * Instances that take freshly created instances as they are, where
+     * Instances.add would copy each of them again. Used for the instances
+     * collected for the next batch and for augmented copies of a batch.
+     */
+    static class Buffer extends Instances {
+
+        private static final long serialVersionUID = 1L;
+
+        Buffer(Instances header, int capacity) {
+            super(header, capacity);
+        }
+
+        /**
+         * Adds the instance itself, not a copy of it. It must not be used
+         * anywhere else.
+         */
+        void append(Instance inst) {
+            inst.setDataset(this);
+            m_Instances.add(inst);
+        }
+    }
+
+    /**
+     * A set of instances that only references instances owned by someone else
+     * and therefore refuses to be modified.
+     */
+    static class ReadOnlyInstances extends Instances {
+
+        private static final long serialVersionUID = 1L;
+
+        ReadOnlyInstances(Instances header, int capacity) {
+            super(header, capacity);
+        }
+
+        /**
+         * Adds the instance itself, not a copy of it.
+         */
+        void append(Instance inst) {
+            m_Instances.add(inst);
+        }
+
+        private static UnsupportedOperationException readOnly() {
+            return new UnsupportedOperationException("These instances are a read-only view, copy them first.");
+        }
+
+        @Override
+        public boolean add(Instance instance) {
+            throw readOnly();
+        }
+
+        @Override
+        public void add(int index, Instance instance) {
+            throw readOnly();
+        }
+
+        @Override
+        public Instance set(int index, Instance instance) {
+            throw readOnly();
+        }
+
+        @Override
+        public Instance remove(int index) {
+            throw readOnly();
+        }
+
+        @Override
+        public void delete() {
+            throw readOnly();
+        }
+
+        @Override
+        public void delete(int index) {
+            throw readOnly();
+        }
+
+        @Override
+        public void deleteWithMissing(int attIndex) {
+            throw readOnly();
+        }
+
+        @Override
+        public void deleteWithMissing(Attribute att) {
+            throw readOnly();
+        }
+
+        @Override
+        public void deleteWithMissingClass() {
+            throw readOnly();
+        }
+
+        @Override
+        public void deleteAttributeAt(int position) {
+            throw readOnly();
+        }
+
+        @Override
+        public void insertAttributeAt(Attribute att, int position) {
+            throw readOnly();
+        }
+
+        @Override
+        public void randomize(Random random) {
+            throw readOnly();
+        }
+
+        @Override
+        public void sort(int attIndex) {
+            throw readOnly();
+        }
+
+        @Override
+        public void sort(Attribute att) {
+            throw readOnly();
+        }
+
+        @Override
+        public void stableSort(int attIndex) {
+            throw readOnly();
+        }
+
+        @Override
+        public void stableSort(Attribute att) {
+            throw readOnly();
+        }
+
+        @Override
+        public void stratify(int numFolds) {
+            throw readOnly();
+        }
     }
 }
@@ -0,0 +1,131 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+/**
+ * Trains one patch per error region. The patches are independent of each
+ * other, so they can be trained concurrently. A patch that fails to build is
+ * left out (null), which makes its region fall back to the base classifier.
+ */
+public class PatchBuilder {
+
+    /**
+     * Regions with fewer instances than this do not get a patch.
+     */
+    public static final int MIN_REGION_SIZE = 5;
+
+    /**
+     * Builds the patches for all regions. The returned vector has one entry
+     * per region, in the order of the regions, regardless of the order in
+     * which the patches finish.
+     *
+     * @param data the instances the region row indices point into
+     * @param regions row indices per region
+     * @param template untrained patch classifier, copied for every region
+     * @param parallelism how many patches are trained at the same time
+     * @return
+     */
+    public static Vector<Classifier> buildPatches(final Instances data, int[][] regions, Classifier template, int parallelism) {
+
+        Classifier[] patches = new Classifier[regions.length];
+
+        if (template != null) {
+            if (parallelism <= 1 || regions.length <= 1) {
+                for (int d = 0; d < regions.length; d++) {
+                    if (regions[d].length >= MIN_REGION_SIZE) {
+                        patches[d] = buildPatch(d, data, regions[d], copyOf(template));
+                    }
+                }
+            } else {
+                buildInParallel(data, regions, template, parallelism, patches);
+            }
+        }
+
+        return new Vector<Classifier>(Arrays.asList(patches));
+    }
+
+    private static void buildInParallel(final Instances data, int[][] regions, Classifier template, int parallelism, Classifier[] patches) {
+
+        ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, regions.length));
+        try {
+            List<Future<Classifier>> futures = new ArrayList<Future<Classifier>>(regions.length);
+            for (int d = 0; d < regions.length; d++) {
+                if (regions[d].length < MIN_REGION_SIZE) {
+                    futures.add(null);
+                    continue;
+                }
+                // copies are made here, Weka's copying is not meant to run concurrently on one template
+                final Classifier patch = copyOf(template);
+                final int region = d;
+                final int[] rows = regions[d];
+                futures.add(pool.submit(new Callable<Classifier>() {
+                    @Override
+                    public Classifier call() {
+                        return buildPatch(region, data, rows, patch);
+                    }
+                }));
+            }
+
+            for (int d = 0; d < futures.size(); d++) {
+                Future<Classifier> f = futures.get(d);
+                if (f == null) {
+                    continue;
+                }
+                try {
+                    patches[d] = f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    System.err.println("Interrupted while building patches.");
+                    return;
+                } catch (ExecutionException e) {
+                    System.err.println("Error building patch " + d + ":");
+                    System.err.println(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Trains a single patch. Errors only affect this patch.
+     */
+    private static Classifier buildPatch(int region, Instances data, int[] rows, Classifier patch) {
+        if (patch == null) {
+            return null;
+        }
+        try {
+            patch.buildClassifier(RegionPartitioner.subset(data, rows));
+            return patch;
+        } catch (Exception e) {
+            System.err.println("Error building patch " + region + " (falling back to base classifier):");
+            System.err.println(e.getMessage());
+        }
+        return null;
+    }
+
+    private static Classifier copyOf(Classifier template) {
+        try {
+            return AbstractClassifier.makeCopy(template);
+        } catch (Exception e) {
+            System.err.println("Error copying patch classifier:");
+            System.err.println(e.getMessage());
+        }
+        return null;
+    }
+}
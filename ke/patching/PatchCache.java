@@ -0,0 +1,189 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Vector;
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Keeps the patches of the last update, so that a patch whose region comes
+ * back unchanged is not trained again. ExtRip often learns the same rules
+ * again, and the rows of a region then only differ by the latest batch.
+ *
+ * A region is recognized by the signature of its rule (see
+ * DSALearnerWrapper.getRegionSignature) and compared by a fingerprint of its
+ * rows: one hash per row, sorted. A cached patch is reused if at most
+ * maxChange of the rows differ from the rows it was trained on. The
+ * fingerprint of a reused patch is not updated, so small changes add up and
+ * the patch is rebuilt once they are too many.
+ *
+ * Regions without a signature are always rebuilt. Only the patches of the
+ * last update are kept.
+ */
+public class PatchCache implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double maxChange;
+
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private long numHits = 0;
+    private long numMisses = 0;
+
+    /**
+     * @param maxChange the fraction of the rows of a region that may differ
+     * before its patch is rebuilt
+     */
+    public PatchCache(double maxChange) {
+        this.maxChange = maxChange;
+    }
+
+    /**
+     * Returns one patch per region, like PatchBuilder.buildPatches, but takes
+     * the patches of known regions from the cache.
+     *
+     * @param data the instances the region row indices point into
+     * @param regions row indices per region
+     * @param signatures the signature per region, null entries for regions
+     * that cannot be described
+     * @param template untrained patch classifier, copied for every region
+     * @param parallelism how many patches are trained at the same time
+     * @return
+     */
+    public synchronized Vector<Classifier> buildPatches(Instances data, int[][] regions, String[] signatures, Classifier template, int parallelism) {
+
+        Classifier[] patches = new Classifier[regions.length];
+        long[][] fingerprints = new long[regions.length][];
+        int[] misses = new int[regions.length];
+        int numMissed = 0;
+
+        for (int r = 0; r < regions.length; r++) {
+            if (regions[r].length < PatchBuilder.MIN_REGION_SIZE) {
+                continue;   // gets no patch anyway
+            }
+            fingerprints[r] = fingerprint(data, regions[r]);
+            Entry cached = (signatures[r] != null) ? this.entries.get(signatures[r]) : null;
+            if (cached != null && cached.patch != null && changed(cached.fingerprint, fingerprints[r]) <= this.maxChange) {
+                patches[r] = cached.patch;
+                fingerprints[r] = cached.fingerprint;
+                this.numHits++;
+            } else {
+                misses[numMissed++] = r;
+                this.numMisses++;
+            }
+        }
+
+        if (numMissed > 0) {
+            int[][] missedRegions = new int[numMissed][];
+            for (int m = 0; m < numMissed; m++) {
+                missedRegions[m] = regions[misses[m]];
+            }
+            Vector<Classifier> built = PatchBuilder.buildPatches(data, missedRegions, template, parallelism);
+            for (int m = 0; m < numMissed; m++) {
+                patches[misses[m]] = built.get(m);
+            }
+        }
+
+        HashMap<String, Entry> current = new HashMap<String, Entry>();
+        for (int r = 0; r < regions.length; r++) {
+            if (signatures[r] != null && patches[r] != null) {
+                current.put(signatures[r], new Entry(fingerprints[r], patches[r]));
+            }
+        }
+        this.entries = current;
+
+        return new Vector<Classifier>(Arrays.asList(patches));
+    }
+
+    public synchronized long getNumHits() {
+        return numHits;
+    }
+
+    public synchronized long getNumMisses() {
+        return numMisses;
+    }
+
+    /**
+     * The sorted hashes of the given rows. A row hashes its values and its
+     * weight, so the same instance gives the same hash in every update.
+     *
+     * @param data
+     * @param rows
+     * @return
+     */
+    static long[] fingerprint(Instances data, int[] rows) {
+        long[] hashes = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            hashes[i] = hash(data.instance(rows[i]));
+        }
+        Arrays.sort(hashes);
+        return hashes;
+    }
+
+    private static long hash(Instance inst) {
+        long h = 1125899906842597L;
+        for (int att = 0; att < inst.numAttributes(); att++) {
+            h = 31 * h + Double.doubleToLongBits(inst.value(att));
+        }
+        h = 31 * h + Double.doubleToLongBits(inst.weight());
+        // spread the bits, the values of neighbouring rows are often similar
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * The fraction of rows that are not in both fingerprints, relative to the
+     * larger one.
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    static double changed(long[] a, long[] b) {
+        int larger = Math.max(a.length, b.length);
+        if (larger == 0) {
+            return 0;
+        }
+        int common = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                common++;
+                i++;
+                j++;
+            }
+        }
+        return 1 - (double) common / larger;
+    }
+
+    /**
+     * A patch and the fingerprint of the rows it was trained on.
+     */
+    private static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final long[] fingerprint;
+        final Classifier patch;
+
+        Entry(long[] fingerprint, Classifier patch) {
+            this.fingerprint = fingerprint;
+            this.patch = patch;
+        }
+    }
+}
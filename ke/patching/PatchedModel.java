@@ -0,0 +1,203 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.io.Serializable;
+import java.util.Vector;
+import weka.classifiers.Classifier;
+import weka.core.BatchPredictor;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Everything that is needed to classify an instance: the base classifier,
+ * the region decider and the patches that were built for its regions (the
+ * patches are indexed by the deciders of exactly this region decider). A
+ * model is never changed after it has been created and is always published
+ * to the classifier as one object, so any number of threads can classify
+ * with it without locking while the next model is being built.
+ *
+ * Regions without a usable patch are resolved to the base classifier when
+ * the model is created, patchFor never returns null.
+ *
+ * Batches of instances can be classified at once (classify(Instances)): the
+ * region decider sees the whole batch, and the rows are grouped by region so
+ * that each patch classifies all of its rows in one go.
+ */
+public class PatchedModel implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final Classifier baseClassifier;
+    final BaseLabelAugmenter augmenter;     // null if the base label is not used as attribute
+    final DSALearnerWrapper regionDecider;  // null before the first update
+    final boolean multiDecider;
+    private final Classifier[] patches;
+    private final int[] regionSizes;        // instances per region in the store the model was built on
+
+    /**
+     * A model that only consists of the base classifier.
+     *
+     * @param baseClassifier
+     * @param augmenter
+     */
+    public PatchedModel(Classifier baseClassifier, BaseLabelAugmenter augmenter) {
+        this(baseClassifier, augmenter, null, null, null);
+    }
+
+    /**
+     * @param baseClassifier
+     * @param augmenter null if the base label is not used as attribute
+     * @param regionDecider
+     * @param regionPatches one patch (or null) per decider of regionDecider,
+     * copied into the model
+     * @param regions the row indices per region the patches were built on,
+     * only their sizes are kept
+     */
+    public PatchedModel(Classifier baseClassifier, BaseLabelAugmenter augmenter, DSALearnerWrapper regionDecider, Vector<Classifier> regionPatches, int[][] regions) {
+        this.baseClassifier = baseClassifier;
+        this.augmenter = augmenter;
+        this.regionDecider = regionDecider;
+        this.multiDecider = (regionDecider != null) && regionDecider.getAmountOfDeciders() > 1;
+
+        int size = (regionPatches == null) ? 0 : regionPatches.size();
+        this.patches = new Classifier[size];
+        for (int i = 0; i < size; i++) {
+            Classifier patch = regionPatches.elementAt(i);
+            this.patches[i] = (patch != null) ? patch : baseClassifier;
+        }
+
+        this.regionSizes = new int[(regions == null) ? 0 : regions.length];
+        for (int i = 0; i < this.regionSizes.length; i++) {
+            this.regionSizes[i] = regions[i].length;
+        }
+    }
+
+    /**
+     * Returns the patch for a region, or the base classifier if there is no
+     * patch for it.
+     *
+     * @param region
+     * @return
+     */
+    public Classifier patchFor(int region) {
+        if (region < 0 || region >= this.patches.length) {
+            return this.baseClassifier;
+        }
+        return this.patches[region];
+    }
+
+    public int numPatches() {
+        return this.patches.length;
+    }
+
+    /**
+     * Returns how many instances of the Instance Store fell into a region when
+     * the model was built.
+     *
+     * @param region
+     * @return
+     */
+    public int regionSize(int region) {
+        if (region < 0 || region >= this.regionSizes.length) {
+            return 0;
+        }
+        return this.regionSizes[region];
+    }
+
+    public Classifier getBaseClassifier() {
+        return baseClassifier;
+    }
+
+    public DSALearnerWrapper getRegionDecider() {
+        return regionDecider;
+    }
+
+    /**
+     * Classifies a batch of instances, with the same results as classifying
+     * them one by one. Base predictions are made for the whole batch, the
+     * region decider decides for the whole batch, and then the rows in
+     * "wrong" regions are grouped by their patch and classified group by
+     * group.
+     *
+     * @param batch instances in the layout of the original problem
+     * @return the predicted label per instance
+     * @throws Exception
+     */
+    public double[] classify(Instances batch) throws Exception {
+
+        double[] labels = basePredictions(batch);
+        if (this.regionDecider == null) {
+            return labels;
+        }
+
+        int numRows = batch.numInstances();
+        Instances input = (this.augmenter != null) ? this.augmenter.augment(batch, labels) : batch;
+        Decision[] decisions = this.regionDecider.decide(input);
+
+        // region of every row that goes to a patch, -1 for rows that keep the base prediction
+        int[] regions = new int[numRows];
+        int[] groupSize = new int[this.patches.length + 1];
+        for (int row = 0; row < numRows; row++) {
+            regions[row] = -1;
+            if (decisions[row].getLabel() == 0) {   // only if its in a "wrong" region
+                int region = this.multiDecider ? decisions[row].getDecider() : 0;
+                if (patchFor(region) != this.baseClassifier) {
+                    regions[row] = region;
+                    groupSize[region + 1]++;
+                }
+            }
+        }
+
+        // counting sort of the rows by region
+        for (int region = 0; region < this.patches.length; region++) {
+            groupSize[region + 1] += groupSize[region];
+        }
+        int[] groupStart = groupSize.clone();
+        int[] order = new int[groupSize[this.patches.length]];
+        for (int row = 0; row < numRows; row++) {
+            if (regions[row] >= 0) {
+                order[groupStart[regions[row]]++] = row;
+            }
+        }
+
+        for (int region = 0; region < this.patches.length; region++) {
+            Classifier patch = this.patches[region];
+            for (int i = groupSize[region]; i < groupSize[region + 1]; i++) {
+                labels[order[i]] = patch.classifyInstance(input.instance(order[i]));
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * The predictions of the base classifier for a batch, in one call if the
+     * base classifier can predict batches more efficiently.
+     */
+    private double[] basePredictions(Instances batch) throws Exception {
+        double[] predictions = new double[batch.numInstances()];
+
+        if (this.baseClassifier instanceof BatchPredictor
+                && ((BatchPredictor) this.baseClassifier).implementsMoreEfficientBatchPrediction()) {
+            double[][] dists = ((BatchPredictor) this.baseClassifier).distributionsForInstances(batch);
+            boolean nominal = batch.classAttribute().isNominal();
+            for (int i = 0; i < predictions.length; i++) {
+                if (!nominal) {
+                    predictions[i] = dists[i][0];
+                } else {
+                    int maxIndex = Utils.maxIndex(dists[i]);    // as AbstractClassifier.classifyInstance
+                    predictions[i] = (dists[i][maxIndex] > 0) ? maxIndex : Utils.missingValue();
+                }
+            }
+            return predictions;
+        }
+
+        for (int i = 0; i < predictions.length; i++) {
+            predictions[i] = this.baseClassifier.classifyInstance(batch.instance(i));
+        }
+        return predictions;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * The rows of a training set sorted by every numeric attribute, computed once
+ * per buildClassifier. Rule induction works on ever smaller subsets of the
+ * training set; with this index a subset is sorted by an attribute by a
+ * linear scan over the presorted rows, filtered by a bitmap of the rows in
+ * the subset, instead of sorting the subset itself again.
+ *
+ * To recognize rows in subsets, the training set is made of RowInstances,
+ * which carry their row number and keep it in all copies (Instances.add and
+ * the Instances constructors copy every instance).
+ */
+class PresortedIndex {
+
+    private final int numRows;
+    private final int[][] order;          // per numeric attribute: the rows without missing value, by value
+    private final Instance[] byRow;       // scratch: the instance of the current subset per row
+
+    /**
+     * Indexes the given instances. They must have been returned by
+     * rowInstances, so row i is data.instance(i).
+     *
+     * @param data
+     */
+    PresortedIndex(Instances data) {
+        this.numRows = data.numInstances();
+        this.order = new int[data.numAttributes()][];
+        this.byRow = new Instance[this.numRows];
+
+        double[] values = new double[this.numRows];
+        for (int att = 0; att < data.numAttributes(); att++) {
+            if (!data.attribute(att).isNumeric() || att == data.classIndex()) {
+                continue;
+            }
+            int numPresent = 0;
+            for (int row = 0; row < this.numRows; row++) {
+                values[row] = data.instance(row).value(att);
+                if (!Utils.isMissingValue(values[row])) {
+                    numPresent++;
+                }
+            }
+            int[] sorted = Utils.stableSort(values);   // missing values last, equal values by row
+            this.order[att] = new int[numPresent];
+            System.arraycopy(sorted, 0, this.order[att], 0, numPresent);
+        }
+    }
+
+    /**
+     * Returns a read-only set in which every instance of data is wrapped in a
+     * RowInstance that knows its position. The values are not copied.
+     *
+     * @param data
+     * @return
+     */
+    static Instances rowInstances(Instances data) {
+        InstanceStore.ReadOnlyInstances result = new InstanceStore.ReadOnlyInstances(data, data.numInstances());
+        for (int row = 0; row < data.numInstances(); row++) {
+            RowInstance inst = new RowInstance(data.instance(row), row);
+            inst.setDataset(result);
+            result.append(inst);
+        }
+        return result;
+    }
+
+    /**
+     * Marks the rows of a subset of the indexed instances. Returns null if
+     * the subset contains instances that are not rows of the index.
+     *
+     * @param data
+     * @return
+     */
+    Subset subset(Instances data) {
+        long[] bits = new long[(this.numRows + 63) >>> 6];
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance inst = data.instance(i);
+            if (!(inst instanceof RowInstance)) {
+                return null;
+            }
+            int row = ((RowInstance) inst).row;
+            if (row >= this.numRows) {
+                return null;
+            }
+            bits[row >>> 6] |= 1L << row;
+            this.byRow[row] = inst;
+        }
+        return new Subset(bits, data.numInstances());
+    }
+
+    /**
+     * The rows of one subset, as a bitmap.
+     */
+    class Subset {
+
+        private final long[] bits;
+        private final int size;
+
+        private Subset(long[] bits, int size) {
+            this.bits = bits;
+            this.size = size;
+        }
+
+        /**
+         * Returns the instances of the subset that have a value for the
+         * (numeric) attribute, sorted by it. Only valid as long as no other
+         * subset has been created since.
+         *
+         * @param att
+         * @return
+         */
+        Instance[] sorted(int att) {
+            int[] rows = order[att];
+            Instance[] result = new Instance[this.size];
+            int n = 0;
+            for (int i = 0; i < rows.length && n < this.size; i++) {
+                int row = rows[i];
+                if ((this.bits[row >>> 6] & (1L << row)) != 0) {
+                    result[n++] = byRow[row];
+                }
+            }
+            if (n < this.size) {
+                Instance[] present = new Instance[n];
+                System.arraycopy(result, 0, present, 0, n);
+                return present;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * An instance that knows its row in the indexed training set. Copies are
+     * RowInstances of the same row and share the values.
+     */
+    static class RowInstance extends DenseInstance {
+
+        private static final long serialVersionUID = 1L;
+
+        final int row;
+
+        RowInstance(Instance instance, int row) {
+            super(instance);    // shares the value array of dense instances
+            this.row = row;
+        }
+
+        @Override
+        public Object copy() {
+            RowInstance result = new RowInstance(this, this.row);
+            result.m_Dataset = m_Dataset;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+/**
+ * Splits a set of instances into the error regions of a region decider. Every
+ * instance is classified exactly once, the regions only hold row indices into
+ * the given instances, no copies.
+ */
+public class RegionPartitioner {
+
+    /**
+     * Takes the error space classifier and assigns every instance that lies in
+     * a "wrong" region to the rule or leaf that is responsible for it.
+     * Requirement: error space classifier implements DeciderEnumerator,
+     * otherwise no regions are returned.
+     *
+     * If the classifier only has one decider (no subdivision of the decision
+     * space), there is exactly one region which holds all "wrong" instances.
+     *
+     * @param data
+     * @param detector
+     * @return per region the (ascending) row indices into data
+     */
+    public static int[][] partition(Instances data, Classifier detector) {
+
+        if (!(detector instanceof DeciderEnumerator)) {
+            return new int[0][];
+        }
+
+        DeciderEnumerator decider = (DeciderEnumerator) detector;
+
+        int numDeciders = decider.getAmountOfDeciders();
+        boolean isMultiDecider = numDeciders > 1;
+        int numRegions = isMultiDecider ? numDeciders : Math.min(numDeciders, 1);
+
+        int[] regionOf = new int[data.numInstances()];
+        int[] regionSizes = new int[numRegions];
+
+        // One pass: classify every instance once and remember its region
+        int row = 0;
+        try {
+            for (; row < regionOf.length; row++) {
+                int region = -1;
+                Decision decision = decider.decide(data.instance(row));
+
+                if (decision.getLabel() != 1) {   // if the initial classification is correct, we wont bother!!
+                    region = isMultiDecider ? decision.getDecider() : 0;
+                    if (region < 0 || region >= numRegions) {
+                        region = -1;
+                    }
+                }
+
+                regionOf[row] = region;
+                if (region >= 0) {
+                    regionSizes[region]++;
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Something went wrong while trying to split into subsets:");
+            System.err.println(e.getMessage());
+            for (; row < regionOf.length; row++) {
+                regionOf[row] = -1;
+            }
+        }
+
+        int[][] regions = new int[numRegions][];
+        for (int r = 0; r < numRegions; r++) {
+            regions[r] = new int[regionSizes[r]];
+            regionSizes[r] = 0;   // reused as fill pointer
+        }
+        for (row = 0; row < regionOf.length; row++) {
+            int region = regionOf[row];
+            if (region >= 0) {
+                regions[region][regionSizes[region]++] = row;
+            }
+        }
+
+        return regions;
+    }
+
+    /**
+     * Creates the training set for one region out of the given rows.
+     *
+     * @param data
+     * @param rows
+     * @return
+     */
+    public static Instances subset(Instances data, int[] rows) {
+        Instances set = new Instances(data, rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            set.add(data.instance(rows[i]));
+        }
+        return set;
+    }
+}
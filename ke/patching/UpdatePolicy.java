@@ -0,0 +1,113 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.io.Serializable;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+/**
+ * Decides after each batch whether the region decider and the patches are
+ * rebuilt. Without gating every batch rebuilds the model (the original
+ * behaviour). With gating a batch only rebuilds it if
+ *
+ * - a change was detected in the errors of the base classifier,
+ * - the error rate of the base classifier on the batch is more than the
+ * tolerance above the lowest error rate since the last rebuild, or
+ * - the model has not been rebuilt for maxStaleBatches batches.
+ *
+ * Otherwise the batch is only added to the Instance Store, and the current
+ * model stays in use.
+ */
+public class UpdatePolicy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean gated;
+    private final double tolerance;
+    private final int maxStaleBatches;
+
+    private double lowestError = Double.NaN;    // since the last rebuild, NaN before the first one
+    private int batchesSinceRebuild = 0;
+    private long numRebuilds = 0;
+    private long numSkipped = 0;
+
+    /**
+     * @param gated false to rebuild after every batch
+     * @param tolerance rise of the error rate that triggers a rebuild
+     * @param maxStaleBatches rebuild at the latest after this many batches
+     */
+    public UpdatePolicy(boolean gated, double tolerance, int maxStaleBatches) {
+        this.gated = gated;
+        this.tolerance = tolerance;
+        this.maxStaleBatches = maxStaleBatches;
+    }
+
+    /**
+     * Called once per batch, returns whether the model is rebuilt.
+     *
+     * @param changeDetected whether the change detector fired on the batch
+     * @param errorRate the error rate of the base classifier on the batch,
+     * NaN if unknown
+     * @return
+     */
+    public boolean rebuild(boolean changeDetected, double errorRate) {
+        this.batchesSinceRebuild++;
+
+        boolean rebuild = !this.gated
+                || changeDetected
+                || Double.isNaN(this.lowestError)
+                || Double.isNaN(errorRate)
+                || errorRate - this.lowestError > this.tolerance
+                || this.batchesSinceRebuild >= this.maxStaleBatches;
+
+        if (rebuild) {
+            this.lowestError = errorRate;
+            this.batchesSinceRebuild = 0;
+            this.numRebuilds++;
+        } else {
+            this.lowestError = Math.min(this.lowestError, errorRate);
+            this.numSkipped++;
+        }
+        return rebuild;
+    }
+
+    public long getNumRebuilds() {
+        return numRebuilds;
+    }
+
+    public long getNumSkipped() {
+        return numSkipped;
+    }
+
+    /**
+     * The error rate of a classifier on data.
+     *
+     * @param data
+     * @param predictions the predictions for data, or null to ask classifier
+     * @param classifier
+     * @return the error rate, NaN if it could not be determined
+     */
+    public static double errorRate(Instances data, double[] predictions, Classifier classifier) {
+        if (data.numInstances() == 0) {
+            return Double.NaN;
+        }
+        int errors = 0;
+        try {
+            for (int i = 0; i < data.numInstances(); i++) {
+                double prediction = (predictions != null) ? predictions[i] : classifier.classifyInstance(data.instance(i));
+                if (prediction != data.instance(i).classValue()) {
+                    errors++;
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Could not determine the error rate of the batch");
+            System.err.println(e.getMessage());
+            return Double.NaN;
+        }
+        return (double) errors / data.numInstances();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import com.yahoo.labs.samoa.instances.Instance;
+import com.yahoo.labs.samoa.instances.SamoaToWekaInstanceConverter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+/**
+ * Converts MOA (SAMOA) instances into Weka instances, in two ways:
+ *
+ * convert() creates a new Weka instance that may be kept, e.g. in the
+ * training buffer. It allocates the value array and the instance, nothing
+ * else (the MOA converter copies the values twice).
+ *
+ * view() is for instances that are only classified: the values are copied
+ * into a buffer of the calling thread that is reused for every call, so
+ * nothing is allocated. The returned instance is only valid until the next
+ * call of the same thread and must not be stored.
+ *
+ * The Weka header is created once, from the first instance (like the MOA
+ * converter does), and shared by all converted instances.
+ */
+public class WekaInstanceConverter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private volatile Instances header;
+
+    private final LongAdder converted = new LongAdder();
+    private final LongAdder viewed = new LongAdder();
+
+    private transient ThreadLocal<Reused> reused;
+
+    public WekaInstanceConverter() {
+        this.reused = new ThreadLocal<Reused>();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.reused = new ThreadLocal<Reused>();
+    }
+
+    /**
+     * The (empty) Weka header of the stream.
+     *
+     * @param inst any instance of the stream
+     * @return
+     */
+    public Instances header(Instance inst) {
+        Instances h = this.header;
+        if (h == null) {
+            synchronized (this) {
+                h = this.header;
+                if (h == null) {
+                    h = new SamoaToWekaInstanceConverter().wekaInstancesInformation(inst.dataset());
+                    this.header = h;
+                }
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Returns a new Weka instance with the values of inst.
+     *
+     * @param inst
+     * @return
+     */
+    public weka.core.Instance convert(Instance inst) {
+        Instances h = header(inst);
+        double[] values = new double[h.numAttributes()];
+        fill(values, inst);
+        DenseInstance result = new DenseInstance(inst.weight(), values);  // keeps the array itself, no copy
+        result.setDataset(h);
+        this.converted.increment();
+        return result;
+    }
+
+    /**
+     * Returns a reused Weka instance of the calling thread that holds the
+     * values of inst until the next call.
+     *
+     * @param inst
+     * @return
+     */
+    public weka.core.Instance view(Instance inst) {
+        Reused r = this.reused.get();
+        if (r == null) {
+            r = new Reused(header(inst));
+            this.reused.set(r);
+        }
+        fill(r.buffer, inst);
+        r.instance.setWeight(inst.weight());
+        this.viewed.increment();
+        return r.instance;
+    }
+
+    /**
+     * How many instances have been converted into new Weka instances.
+     *
+     * @return
+     */
+    public long numConverted() {
+        return this.converted.sum();
+    }
+
+    /**
+     * How many instances have been read through the reused instances.
+     *
+     * @return
+     */
+    public long numViewed() {
+        return this.viewed.sum();
+    }
+
+    private static void fill(double[] values, Instance inst) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = inst.value(i);
+        }
+    }
+
+    /**
+     * The buffer of one thread and the instance that wraps it.
+     */
+    private static class Reused {
+
+        final double[] buffer;
+        final DenseInstance instance;
+
+        Reused(Instances header) {
+            this.buffer = new double[header.numAttributes()];
+            this.instance = new DenseInstance(1, this.buffer);   // keeps the buffer itself, no copy
+            this.instance.setDataset(header);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moa.tud.ke.patching;
+
+import java.util.ArrayList;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Turns a set of instances into the binary problem the region decider learns:
+ * was the base classifier right or wrong for this instance?
+ *
+ * Nothing is copied. The header is the one of the given instances, with the
+ * class attribute replaced (at the same position) by the nominal attribute
+ * "newClass" {wrong,right}. Every row shares the values of the original
+ * instance and only overrides the class value. The returned set is
+ * read-only; copies of its rows are ordinary instances of the new header.
+ */
+public class WrongRightView {
+
+    public static final double WRONG = 0;
+    public static final double RIGHT = 1;
+
+    /**
+     * Creates the relabeled view.
+     *
+     * @param data the instances, with the class index set
+     * @param basePredictions base classifier prediction per instance of data
+     * @return
+     */
+    public static Instances create(Instances data, double[] basePredictions) {
+
+        Instances header = relabeledHeader(data);
+        int classIndex = header.classIndex();
+
+        InstanceStore.ReadOnlyInstances view = new InstanceStore.ReadOnlyInstances(header, data.numInstances());
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance inst = data.instance(i);
+            double label = (basePredictions[i] == inst.classValue()) ? RIGHT : WRONG;
+            Instance row = (inst instanceof DenseInstance)
+                    ? new RelabeledInstance(inst, classIndex, label)
+                    : new RelabeledReference(inst, classIndex, label);  // e.g. a row of a columnar store
+            row.setDataset(view);
+            view.append(row);
+        }
+        return view;
+    }
+
+    /**
+     * Returns an empty header like the one of data, but with {wrong,right} as
+     * class attribute.
+     *
+     * @param data
+     * @return
+     */
+    public static Instances relabeledHeader(Instances data) {
+        ArrayList<String> labels = new ArrayList<String>(2);
+        labels.add("wrong");
+        labels.add("right");
+
+        int classIndex = data.classIndex();
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>(data.numAttributes());
+        for (int i = 0; i < data.numAttributes(); i++) {
+            if (i == classIndex) {
+                attributes.add(new Attribute("newClass", labels));
+            } else {
+                attributes.add((Attribute) data.attribute(i).copy());
+            }
+        }
+        Instances header = new Instances(data.relationName(), attributes, 0);
+        header.setClassIndex(classIndex);
+        return header;
+    }
+
+    /**
+     * A row of the view: the values of the original instance (shared, not
+     * copied) with a different class value.
+     */
+    static class RelabeledInstance extends DenseInstance {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int relabeledIndex;
+        private final double label;
+
+        RelabeledInstance(Instance original, int relabeledIndex, double label) {
+            super(original);    // shares the value array of dense instances
+            this.relabeledIndex = relabeledIndex;
+            this.label = label;
+        }
+
+        @Override
+        public double value(int attIndex) {
+            return (attIndex == this.relabeledIndex) ? this.label : m_AttValues[attIndex];
+        }
+
+        @Override
+        public double valueSparse(int indexOfIndex) {
+            return value(indexOfIndex);
+        }
+
+        @Override
+        public boolean isMissingSparse(int indexOfIndex) {
+            return isMissing(indexOfIndex);
+        }
+
+        @Override
+        public double[] toDoubleArray() {
+            double[] values = m_AttValues.clone();
+            values[this.relabeledIndex] = this.label;
+            return values;
+        }
+
+        /**
+         * Copies are ordinary instances with their own values.
+         */
+        @Override
+        public Object copy() {
+            DenseInstance result = new DenseInstance(m_Weight, toDoubleArray());
+            result.setDataset(m_Dataset);
+            return result;
+        }
+
+        @Override
+        public String toStringNoWeight(int afterDecimalPoint) {
+            return ((DenseInstance) copy()).toStringNoWeight(afterDecimalPoint);
+        }
+
+        @Override
+        public void setValue(int attIndex, double value) {
+            throw new UnsupportedOperationException("Relabeled instances are read-only, copy them first.");
+        }
+
+        @Override
+        public void setValueSparse(int indexOfIndex, double value) {
+            throw new UnsupportedOperationException("Relabeled instances are read-only, copy them first.");
+        }
+
+        @Override
+        public void replaceMissingValues(double[] array) {
+            throw new UnsupportedOperationException("Relabeled instances are read-only, copy them first.");
+        }
+    }
+
+    /**
+     * A row of the view for instances whose values cannot be shared (not
+     * dense instances): reads the values from the original instance.
+     */
+    static class RelabeledReference extends InstanceStore.ReadOnlyInstance {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Instance original;
+        private final int relabeledIndex;
+        private final double label;
+
+        RelabeledReference(Instance original, int relabeledIndex, double label) {
+            super(original.weight());
+            this.original = original;
+            this.relabeledIndex = relabeledIndex;
+            this.label = label;
+        }
+
+        @Override
+        public double value(int attIndex) {
+            return (attIndex == this.relabeledIndex) ? this.label : this.original.value(attIndex);
+        }
+
+        @Override
+        public int numAttributes() {
+            return this.original.numAttributes();
+        }
+    }
+}